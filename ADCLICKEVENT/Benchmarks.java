@@ -0,0 +1,299 @@
+/*FOLLOW-UP: JMH benchmarks - AdClickSystem vs TTL variant vs MultiThreadedAdClickSystem
+
+Question: does the concurrent version actually beat the single-threaded one, and at what cost?
+
+Systems under test (Impl param):
+  SINGLE : AdClickSystem from sol.java (HashMap/TreeMap, no locking). Shared across threads it
+           must sit behind one lock -> that is the real alternative to the concurrent design.
+  TTL    : same + purge-before-every-batch from TTL.java (purge cost on the write path)
+  MULTI  : MultiThreadedAdClickSystem (ConcurrentHashMap + skip lists + LongAdder, background purge)
+           with ExpiredDaySink.NONE: its default sink prints and keeps every purged day, which would
+           put System.out and an ever-growing list into the purge numbers
+  sol.java / TTL.java are notes, not classes, so SINGLE/TTL are transcribed below as LockedAdClickSystem.
+
+Workload params:
+  dupRatio : 0, 0.1, 0.25, 0.5   fraction of events that re-send a recent event (dedupe hit)
+  skew     : UNIFORM | ZIPF      ad picked uniformly or Zipf(s = 1.0) -> hot ads, hot locks / cells
+  threads  : 1, 2, 4, 8, 16, 32, 64 (JMH -t; main() below sweeps them)
+
+Benchmarks:
+  ingest            : throughput, one op = one event (@OperationsPerInvocation = BATCH)
+  generateOnly      : same event generation without a system -> subtract from ingest alloc/time
+                      (Workload state only: no impl param, so it runs once per dupRatio x skew)
+  mixed group       : 2 ingest threads + 1 purge thread + 1 reader, reader = isAdCappedAtDate.
+                      The whole group runs in SampleTime / ns (JMH wants one mode and unit per
+                      group) -> p50/p99/p99.9 read latency under write + purge load; the ingest
+                      rows are per BATCH call, the purge rows include its 10 ms pause
+
+GC: run with -prof gc. gc.alloc.rate.norm is bytes per op = bytes per EVENT for ingest
+(generateOnly gives the generator's share). A regression shows up as a bigger number there.
+
+Build / run (no build file in this repo; JMH 1.37 jars + annotation processor on the classpath):
+  javac -cp jmh-core.jar:jmh-generator-annprocess.jar -d out ADCLICKEVENT/*.java
+  java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar ParkingSpot.AdClickBenchmarks
+  or a single point: java -cp ... org.openjdk.jmh.Main AdClickBenchmarks.ingest -t 8 -p impl=MULTI -prof gc
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEvent;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class AdClickBenchmarks {
+
+    static final int BATCH = 100;
+    static final int ADS = 10_000;
+    static final int DAYS = 10;                 // events spread over the last DAYS days
+    static final int RECENT = 1024;             // dup source: ring of recently sent events
+
+    public enum Impl { SINGLE, TTL, MULTI }
+
+    public enum Skew { UNIFORM, ZIPF }
+
+    /** Common surface of the three systems. */
+    interface AdCounterSystem {
+        void consumeAdEvents(List<AdEvent> events);
+
+        boolean isAdCappedAtDate(UUID adUUID, LocalDate date);
+
+        void purgeOldData(LocalDate cutoffDateExclusive);
+
+        default void shutdown() { }
+    }
+
+    // ---------------- Shared state: ad population (+ system) ----------------
+
+    /** Workload only: what generateOnly needs, without a system to build per Impl. */
+    @State(Scope.Benchmark)
+    public static class Workload {
+        @Param({ "0", "0.1", "0.25", "0.5" })
+        double dupRatio;
+
+        @Param({ "UNIFORM", "ZIPF" })
+        Skew skew;
+
+        UUID[] ads;
+        double[] zipfCdf;
+        LocalDate today;
+
+        @Setup(Level.Trial)
+        public void population() {
+            ads = new UUID[ADS];
+            for (int i = 0; i < ADS; i++) ads[i] = UUID.randomUUID();
+            zipfCdf = new double[ADS];
+            double sum = 0;
+            for (int i = 0; i < ADS; i++) zipfCdf[i] = sum += 1.0 / (i + 1);
+            for (int i = 0; i < ADS; i++) zipfCdf[i] /= sum;
+            today = LocalDate.now();
+        }
+
+        int nextAd(ThreadLocalRandom rnd) {
+            if (skew == Skew.UNIFORM) return rnd.nextInt(ADS);
+            int i = Arrays.binarySearch(zipfCdf, rnd.nextDouble());
+            return Math.min(ADS - 1, i >= 0 ? i : -i - 1);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SystemState extends Workload {
+        @Param({ "SINGLE", "TTL", "MULTI" })
+        Impl impl;
+
+        AdCounterSystem system;
+
+        /** Fresh store per iteration so iterations do not measure an ever-growing map. */
+        @Setup(Level.Iteration)
+        public void freshSystem() {
+            switch (impl) {
+                case SINGLE: system = new LockedAdClickSystem(false); break;
+                case TTL:    system = new LockedAdClickSystem(true); break;
+                default:     system = multi(); break;
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            system.shutdown();
+        }
+
+        private static AdCounterSystem multi() {
+            MultiThreadedAdClickSystem svc = new MultiThreadedAdClickSystem(ExpiredDaySink.NONE);
+            return new AdCounterSystem() {
+                @Override public void consumeAdEvents(List<AdEvent> events) { svc.consumeAdEvents(events); }
+
+                @Override public boolean isAdCappedAtDate(UUID adUUID, LocalDate date) { return svc.isAdCappedAtDate(adUUID, date); }
+
+                @Override public void purgeOldData(LocalDate cutoff) { svc.purgeOldData(cutoff); }
+
+                @Override public void shutdown() { svc.shutdown(); }
+            };
+        }
+    }
+
+    // ---------------- Per-thread event generator ----------------
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final AdEvent[] recent = new AdEvent[RECENT];
+        final List<AdEvent> batch = new ArrayList<>(BATCH);
+        long seq;
+
+        /** BATCH events; dupRatio of them re-send one of the last RECENT events of this thread. */
+        List<AdEvent> next(Workload s) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            batch.clear();
+            for (int i = 0; i < BATCH; i++) {
+                AdEvent e;
+                if (seq >= RECENT && rnd.nextDouble() < s.dupRatio) {
+                    e = recent[rnd.nextInt(RECENT)];
+                } else {
+                    long n = seq++;
+                    LocalDateTime ts = s.today.minusDays(n % DAYS).atStartOfDay()
+                            .plusNanos(rnd.nextLong(86_400_000_000_000L));
+                    e = new AdEvent(s.ads[s.nextAd(rnd)], ts, n % 50 == 0 ? AdEventType.CLICK : AdEventType.IMPRESSION);
+                    recent[(int) (n % RECENT)] = e;
+                }
+                batch.add(e);
+            }
+            return batch;
+        }
+    }
+
+    // ---------------- Ingestion throughput ----------------
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void ingest(SystemState s, Producer p) {
+        s.system.consumeAdEvents(p.next(s));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<AdEvent> generateOnly(Workload s, Producer p) {
+        return p.next(s);
+    }
+
+    // ---------------- Read latency under ingest + purge ----------------
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void mixedIngest(SystemState s, Producer p) {
+        s.system.consumeAdEvents(p.next(s));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void mixedPurge(SystemState s) throws InterruptedException {
+        s.system.purgeOldData(s.today.minusDays(DAYS / 2));
+        // pace it like the scheduled purger would: park, do not burn a core the writers need
+        TimeUnit.MILLISECONDS.sleep(10);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean mixedIsAdCapped(SystemState s) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        try {
+            return s.system.isAdCappedAtDate(s.ads[s.nextAd(rnd)], s.today);
+        } catch (IllegalArgumentException noDataYet) {
+            return false;
+        }
+    }
+
+    // ---------------- sol.java / TTL.java, transcribed, behind one lock ----------------
+
+    static final class LockedAdClickSystem implements AdCounterSystem {
+        static final int RETENTION_DAYS = MultiThreadedAdClickSystem.RETENTION_DAYS;
+
+        private final boolean purgeOnIngest;
+        private final Map<UUID, TreeMap<LocalDate, int[]>> eventStore = new HashMap<>();   // {impressions, clicks}
+        private final Map<UUID, Set<MultiThreadedAdClickSystem.SeenEvent>> seenStore = new HashMap<>();
+
+        LockedAdClickSystem(boolean purgeOnIngest) {
+            this.purgeOnIngest = purgeOnIngest;
+        }
+
+        @Override
+        public synchronized void consumeAdEvents(List<AdEvent> events) {
+            if (purgeOnIngest) purgeOldData(LocalDate.now().minusDays(RETENTION_DAYS));
+            for (AdEvent e : events) {
+                Set<MultiThreadedAdClickSystem.SeenEvent> seen = seenStore.computeIfAbsent(e.adUUID, k -> new HashSet<>());
+                if (!seen.add(new MultiThreadedAdClickSystem.SeenEvent(e.timestamp, e.type))) continue;
+                int[] dc = eventStore.computeIfAbsent(e.adUUID, k -> new TreeMap<>())
+                        .computeIfAbsent(e.timestamp.toLocalDate(), d -> new int[2]);
+                dc[e.type == AdEventType.IMPRESSION ? 0 : 1]++;
+            }
+        }
+
+        @Override
+        public synchronized boolean isAdCappedAtDate(UUID adUUID, LocalDate date) {
+            TreeMap<LocalDate, int[]> history = eventStore.get(adUUID);
+            if (history == null) throw new IllegalArgumentException("No data for adUUID: " + adUUID);
+            int impressions = 0, clicks = 0;
+            for (int[] dc : history.subMap(date.minusDays(MultiThreadedAdClickSystem.ROLLING_WINDOW_LENGTH_DAYS - 1), true, date, true).values()) {
+                impressions += dc[0];
+                clicks += dc[1];
+            }
+            return impressions >= MultiThreadedAdClickSystem.IMPRESSION_LIMIT && clicks == 0;
+        }
+
+        @Override
+        public synchronized void purgeOldData(LocalDate cutoffDateExclusive) {
+            Iterator<Map.Entry<UUID, TreeMap<LocalDate, int[]>>> it = eventStore.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<UUID, TreeMap<LocalDate, int[]>> e = it.next();
+                e.getValue().headMap(cutoffDateExclusive, false).clear();
+                if (e.getValue().isEmpty()) {
+                    it.remove();
+                    seenStore.remove(e.getKey());
+                }
+            }
+        }
+    }
+
+    // ---------------- Sweep: 1..64 threads, GC profiler on ----------------
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+            Options opt = new OptionsBuilder()
+                    .include(AdClickBenchmarks.class.getSimpleName() + "\\.(ingest|generateOnly)$")
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .result("ingest-t" + threads + ".json")
+                    .resultFormat(org.openjdk.jmh.results.format.ResultFormatType.JSON)
+                    .build();
+            new Runner(opt).run();
+        }
+        new Runner(new OptionsBuilder()
+                .include(AdClickBenchmarks.class.getSimpleName() + "\\.mixed")
+                .addProfiler(GCProfiler.class)
+                .result("mixed.json")
+                .resultFormat(org.openjdk.jmh.results.format.ResultFormatType.JSON)
+                .build()).run();
+    }
+}
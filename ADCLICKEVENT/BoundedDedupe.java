@@ -0,0 +1,596 @@
+/*FOLLOW-UP: Bounded-memory dedupe (replace Set<SeenEvent>)
+
+Problem:
+seenStore keeps one SeenEvent (object + LocalDateTime + HashMap node ~ 100 bytes)
+for EVERY event ever seen. It is only dropped when the whole ad is purged,
+so a long-lived ad grows forever.
+
+Observation: a duplicate always has the same timestamp -> the same event DAY.
+So dedupe state can be bucketed by day and thrown away together with the day.
+
+Per ad:
+ring of RETENTION_DAYS buckets, slot = epochDay % RETENTION_DAYS
+bucket stores primitive fingerprints of (nanoOfDay, type)
+when a slot is reused by a newer day -> clear it (O(capacity), once per day)
+
+Two bucket flavours:
+1) Exact   -> open-addressing long set, linear probing, fixed capacity
+2) Approx  -> cuckoo filter, fingerprint bits chosen from the target false-positive rate
+              (false positive = a new event wrongly dropped as duplicate)
+
+Both are primitive arrays with a capacity fixed up front:
+max memory per ad = RETENTION_DAYS * bucketBytes, known up front (maxBytesPerAd()).
+The exact set starts at 8 slots and doubles up to that capacity, so a quiet ad-day costs
+~100 bytes instead of the full table (10M ads * 2 days * 4 KB dense would be ~80 GB);
+retainedBytes() reports what is actually held. The cuckoo filter cannot be rehashed
+(it keeps no keys), so it is allocated at full size.
+Lookups only do arithmetic on longs -> zero allocation per event (except while a set grows).
+
+If a bucket is full we cannot remember the event: it is counted (treated as new)
+and overflowCount() goes up, so capacity can be tuned instead of silently growing.
+The ring remembers that it overflowed (hasOverflowed), because a replay cannot use
+dedupe to recognise such an event again (DurableAdClickSystem keeps a watermark for it).
+
+Events outside the window are rejected with their own result, OUT_OF_WINDOW (not DUPLICATE),
+and counted in outOfWindowCount():
+  too old    : day <= today - RETENTION_DAYS, or older than the ring's newest day allows
+  too new    : day > today + MAX_FUTURE_SKEW_DAYS; such an event never moves the ring's newest
+               day, so one bad clock cannot push every real event out of the window
+today comes from the wall clock (UTC epoch day; the 1-day skew also absorbs zone offsets).
+
+Java Code*/
+package ParkingSpot;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+public class BoundedDedupeStore {
+
+    enum Mode { EXACT, CUCKOO }
+
+    /**
+     * mark() results; OVERFLOW = bucket full, counted as new but not remembered;
+     * OUT_OF_WINDOW = too old or too far in the future, neither counted nor remembered.
+     */
+    static final int DUPLICATE = 0, NEW = 1, OVERFLOW = 2, OUT_OF_WINDOW = 3;
+    private static final int RETIRED = 4;
+
+    static final int MAX_FUTURE_SKEW_DAYS = 1;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private final ConcurrentHashMap<UUID, DedupeRing> rings = new ConcurrentHashMap<>();
+    private final int retentionDays;
+    private final Mode mode;
+    private final int eventsPerDay;
+    private final double falsePositiveRate;
+    private final LongAdder overflow = new LongAdder();
+    private final LongAdder outOfWindow = new LongAdder();
+    private final LongSupplier todayEpochDay;
+
+    /** Exact dedupe, up to eventsPerDay distinct events per ad per day. */
+    public BoundedDedupeStore(int eventsPerDay) {
+        this(MultiThreadedAdClickSystem.RETENTION_DAYS, Mode.EXACT, eventsPerDay, 0);
+    }
+
+    public BoundedDedupeStore(int retentionDays, Mode mode, int eventsPerDay, double falsePositiveRate) {
+        this(retentionDays, mode, eventsPerDay, falsePositiveRate,
+                () -> Math.floorDiv(System.currentTimeMillis(), MILLIS_PER_DAY));
+    }
+
+    /** @param todayEpochDay wall clock the window is anchored to (tests / replays can pin it). */
+    public BoundedDedupeStore(int retentionDays, Mode mode, int eventsPerDay, double falsePositiveRate,
+                              LongSupplier todayEpochDay) {
+        if (retentionDays <= 0 || eventsPerDay <= 0) throw new IllegalArgumentException("sizes must be > 0");
+        if (mode == Mode.CUCKOO && (falsePositiveRate <= 0 || falsePositiveRate >= 1)) {
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1)");
+        }
+        this.retentionDays = retentionDays;
+        this.mode = mode;
+        this.eventsPerDay = eventsPerDay;
+        this.falsePositiveRate = falsePositiveRate;
+        this.todayEpochDay = todayEpochDay;
+    }
+
+    // ---------------- Public API ----------------
+
+    /**
+     * @return true if this is the first time (ad, timestamp, type) is seen; false for duplicates
+     * and for events outside the window (use mark() to tell them apart).
+     */
+    public boolean markSeen(UUID adUUID, LocalDateTime timestamp, AdEventType type) {
+        return markSeen(adUUID, timestamp.toLocalDate().toEpochDay(), timestamp.toLocalTime().toNanoOfDay(), type);
+    }
+
+    public boolean markSeen(UUID adUUID, long epochDay, long nanoOfDay, AdEventType type) {
+        int r = mark(adUUID, epochDay, nanoOfDay, type);
+        return r == NEW || r == OVERFLOW;
+    }
+
+    /** @return DUPLICATE, NEW, OVERFLOW or OUT_OF_WINDOW. */
+    int mark(UUID adUUID, long epochDay, long nanoOfDay, AdEventType type) {
+        long today = todayEpochDay.getAsLong();
+        if (epochDay > today + MAX_FUTURE_SKEW_DAYS || epochDay <= today - retentionDays) {
+            outOfWindow.increment();                    // before touching the ring: no state for it
+            return OUT_OF_WINDOW;
+        }
+        long key = (nanoOfDay << 1) | type.ordinal();
+        while (true) {
+            DedupeRing ring = rings.get(adUUID);
+            if (ring == null) ring = rings.computeIfAbsent(adUUID, k -> new DedupeRing());
+            int r = ring.markSeen(epochDay, key);
+            if (r == OUT_OF_WINDOW) outOfWindow.increment();
+            if (r != RETIRED) return r;
+            rings.remove(adUUID, ring);                 // purged under us: retry on a fresh ring
+        }
+    }
+
+    /** Forget an event mark() returned NEW for (DurableAdClickSystem, when the WAL refused it). */
+    void unmark(UUID adUUID, long epochDay, long nanoOfDay, AdEventType type) {
+        DedupeRing ring = rings.get(adUUID);
+        if (ring != null) ring.unmark(epochDay, (nanoOfDay << 1) | type.ordinal());
+    }
+
+    /** True once any of the ad's buckets was full: some of its counted events are not remembered. */
+    boolean hasOverflowed(UUID adUUID) {
+        DedupeRing ring = rings.get(adUUID);
+        if (ring == null) return false;
+        synchronized (ring) {
+            return ring.overflowed;
+        }
+    }
+
+    /**
+     * Drop the ad's dedupe state if it only remembers days before cutoffEpochDay (its history was purged).
+     * A mark for a newer day that is still on its way to the counters keeps the ring alive.
+     */
+    public boolean removeIfOlderThan(UUID adUUID, long cutoffEpochDay) {
+        DedupeRing ring = rings.get(adUUID);
+        if (ring == null || !ring.retireIfOlderThan(cutoffEpochDay)) return false;
+        rings.remove(adUUID, ring);
+        return true;
+    }
+
+    /** Upper bound of memory one ad can take, independent of traffic. */
+    public long maxBytesPerAd() {
+        return (long) retentionDays * newBucket().maxBytes();
+    }
+
+    /** Bytes of fingerprint tables currently allocated (walks every ring; for sizing, not the hot path). */
+    public long retainedBytes() {
+        long bytes = 0;
+        for (DedupeRing ring : rings.values()) {
+            synchronized (ring) {
+                for (FingerprintSet bucket : ring.slots) if (bucket != null) bytes += bucket.bytes();
+            }
+        }
+        return bytes;
+    }
+
+    public long overflowCount() {
+        return overflow.sum();
+    }
+
+    /** Events rejected as too old / too far in the future (late or bad clocks, not duplicates). */
+    public long outOfWindowCount() {
+        return outOfWindow.sum();
+    }
+
+    // ---------------- Checkpoint support (DurableAdClickSystem) ----------------
+
+    /** Caller must keep the ad quiet (stripe lock) so the ring matches the ad's counters. */
+    boolean writeAd(UUID adUUID, DurableAdClickSystem.MappedFile out) throws IOException {
+        DedupeRing ring = rings.get(adUUID);
+        if (ring == null) {
+            out.putByte((byte) 0);
+            return false;
+        }
+        synchronized (ring) {
+            out.putByte((byte) (ring.overflowed ? 2 : 1));
+            out.putLong(ring.newestDay);
+            for (int s = 0; s < retentionDays; s++) {
+                if (ring.slots[s] == null) {
+                    out.putByte((byte) 0);
+                } else {
+                    out.putByte((byte) 1);
+                    out.putLong(ring.slotDay[s]);
+                    ring.slots[s].write(out);
+                }
+            }
+        }
+        return true;
+    }
+
+    void readAd(UUID adUUID, DurableAdClickSystem.MappedFile in) throws IOException {
+        byte present = in.getByte();
+        if (present == 0) return;
+        DedupeRing ring = new DedupeRing();
+        ring.overflowed = present == 2;
+        ring.newestDay = in.getLong();
+        for (int s = 0; s < retentionDays; s++) {
+            if (in.getByte() == 0) continue;
+            ring.slotDay[s] = in.getLong();
+            ring.slots[s] = newBucket();
+            ring.slots[s].read(in);
+        }
+        rings.put(adUUID, ring);
+    }
+
+    private FingerprintSet newBucket() {
+        return mode == Mode.EXACT
+                ? new LongOpenHashSet(eventsPerDay)
+                : new CuckooFilter(eventsPerDay, falsePositiveRate);
+    }
+
+    // ---------------- Per-ad ring of day buckets ----------------
+
+    private final class DedupeRing {
+        final long[] slotDay = new long[retentionDays];
+        final FingerprintSet[] slots = new FingerprintSet[retentionDays];  // allocated on first use
+        long newestDay = Long.MIN_VALUE;
+        boolean retired;                                                   // removed from rings, never reused
+        boolean overflowed;
+
+        DedupeRing() {
+            Arrays.fill(slotDay, Long.MIN_VALUE);
+        }
+
+        synchronized boolean retireIfOlderThan(long cutoffEpochDay) {
+            if (newestDay >= cutoffEpochDay) return false;
+            retired = true;
+            return true;
+        }
+
+        synchronized void unmark(long epochDay, long key) {
+            int slot = (int) Math.floorMod(epochDay, (long) retentionDays);
+            if (slots[slot] != null && slotDay[slot] == epochDay) slots[slot].remove(key);
+        }
+
+        synchronized int markSeen(long epochDay, long key) {
+            if (retired) return RETIRED;
+            if (epochDay > newestDay) newestDay = epochDay;
+            if (epochDay <= newestDay - retentionDays) return OUT_OF_WINDOW;   // day already rotated out
+
+            int slot = (int) Math.floorMod(epochDay, (long) retentionDays);
+            FingerprintSet bucket = slots[slot];
+            if (bucket == null) {
+                bucket = slots[slot] = newBucket();
+                slotDay[slot] = epochDay;
+            } else if (slotDay[slot] != epochDay) {
+                bucket.clear();                                          // day rotated out
+                slotDay[slot] = epochDay;
+            }
+
+            int r = bucket.add(key);
+            if (r == FingerprintSet.FULL) {
+                overflow.increment();
+                overflowed = true;
+                return OVERFLOW;
+            }
+            return r == FingerprintSet.ADDED ? NEW : DUPLICATE;
+        }
+    }
+
+    // ---------------- Fingerprint sets ----------------
+
+    interface FingerprintSet {
+        int ADDED = 0, PRESENT = 1, FULL = 2;
+
+        int add(long key);
+
+        /** Undo an add() that returned ADDED. */
+        void remove(long key);
+
+        void clear();
+
+        /** Bytes allocated now. */
+        long bytes();
+
+        /** Bytes once grown to capacity. */
+        long maxBytes();
+
+        void write(DurableAdClickSystem.MappedFile out) throws IOException;
+
+        void read(DurableAdClickSystem.MappedFile in) throws IOException;
+    }
+
+    static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * Exact set of non-negative longs. 0 marks an empty slot, so keys are stored as key + 1.
+     * Starts small and doubles at load 0.75 up to maxCap, so memory follows the day's traffic.
+     */
+    static final class LongOpenHashSet implements FingerprintSet {
+        static final int INITIAL_CAPACITY = 8;
+
+        private final int maxCap;
+        private final int maxSize;
+        private long[] table;
+        private int mask;
+        private int size;
+
+        LongOpenHashSet(int expected) {
+            // load <= 0.75 and always one empty slot, so the probe loop in add() terminates
+            int need = Math.max(expected + 1, (expected * 4 + 2) / 3);
+            maxCap = Integer.highestOneBit(need - 1) << 1;
+            maxSize = expected;
+            allocate(Math.min(INITIAL_CAPACITY, maxCap));
+        }
+
+        private void allocate(int cap) {
+            table = new long[cap];
+            mask = cap - 1;
+        }
+
+        /** Grow so that one more key keeps the load at or below 0.75 (or the table is at maxCap). */
+        private void ensureRoom(int keys) {
+            int cap = table.length;
+            while (cap < maxCap && keys > cap - (cap >>> 2)) cap <<= 1;
+            if (cap == table.length) return;
+            long[] old = table;
+            allocate(cap);
+            for (long stored : old) if (stored != 0) insert(stored);
+        }
+
+        private void insert(long stored) {
+            int i = (int) mix64(stored) & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = stored;
+        }
+
+        @Override
+        public int add(long key) {
+            long stored = key + 1;
+            int i = (int) mix64(stored) & mask;
+            while (true) {
+                long cur = table[i];
+                if (cur == stored) return PRESENT;
+                if (cur == 0) break;
+                i = (i + 1) & mask;
+            }
+            if (size == maxSize) return FULL;
+            if (size + 1 > table.length - (table.length >>> 2) && table.length < maxCap) {
+                ensureRoom(size + 1);
+                insert(stored);
+            } else {
+                table[i] = stored;
+            }
+            size++;
+            return ADDED;
+        }
+
+        /** Backward-shift deletion: later keys of the probe run move up, so no tombstones are needed. */
+        @Override
+        public void remove(long key) {
+            long stored = key + 1;
+            int gap = (int) mix64(stored) & mask;
+            while (table[gap] != stored) {
+                if (table[gap] == 0) return;
+                gap = (gap + 1) & mask;
+            }
+            for (int j = (gap + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+                int home = (int) mix64(table[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {       // gap lies on j's probe path
+                    table[gap] = table[j];
+                    gap = j;
+                }
+            }
+            table[gap] = 0;
+            size--;
+        }
+
+        /** Back to the initial table: the new day starts as cheap as a fresh one. */
+        @Override
+        public void clear() {
+            if (table.length > INITIAL_CAPACITY) allocate(Math.min(INITIAL_CAPACITY, maxCap));
+            else Arrays.fill(table, 0L);
+            size = 0;
+        }
+
+        @Override
+        public long bytes() {
+            return table.length * 8L;
+        }
+
+        @Override
+        public long maxBytes() {
+            return maxCap * 8L;
+        }
+
+        /** Sparse: only the stored keys, so a checkpoint costs 8 bytes per remembered event, not per slot. */
+        @Override
+        public void write(DurableAdClickSystem.MappedFile out) throws IOException {
+            out.putInt(size);
+            for (long stored : table) {
+                if (stored != 0) out.putLong(stored);
+            }
+        }
+
+        @Override
+        public void read(DurableAdClickSystem.MappedFile in) throws IOException {
+            clear();
+            int n = in.getInt();
+            ensureRoom(n);
+            for (size = 0; size < n; size++) insert(in.getLong());
+        }
+    }
+
+    /**
+     * Cuckoo filter, 4 fingerprints per bucket, partial-key cuckoo hashing.
+     * FPR ~= 2 * 4 / 2^bits, so bits = ceil(log2(8 / fpr)), capped at 16 (stored in a char[]).
+     */
+    static final class CuckooFilter implements FingerprintSet {
+        static final int SLOTS = 4;
+        static final int MAX_KICKS = 500;
+
+        private final char[] table;
+        private final int bucketMask;
+        private final int fpMask;
+        private char victim;              // one-entry stash so a failed kick chain loses nothing
+        private int victimBucket = -1;
+        private long seed = 0x9E3779B97F4A7C15L;
+
+        CuckooFilter(int expected, double fpr) {
+            int bits = (int) Math.ceil(Math.log(2.0 * SLOTS / fpr) / Math.log(2));
+            bits = Math.max(4, Math.min(16, bits));
+            fpMask = (1 << bits) - 1;
+            int buckets = Integer.highestOneBit(Math.max(2, (int) Math.ceil(expected / (SLOTS * 0.95))) - 1) << 1;
+            table = new char[buckets * SLOTS];
+            bucketMask = buckets - 1;
+        }
+
+        @Override
+        public int add(long key) {
+            long h = mix64(key);
+            char fp = (char) ((h >>> 32) & fpMask);
+            if (fp == 0) fp = 1;
+            int i1 = (int) h & bucketMask;
+            int i2 = alt(i1, fp);
+
+            if (contains(i1, fp) || contains(i2, fp)
+                    || (victimBucket >= 0 && victim == fp && (victimBucket == i1 || victimBucket == i2))) {
+                return PRESENT;
+            }
+            if (victimBucket >= 0) return FULL;
+            if (put(i1, fp) || put(i2, fp)) return ADDED;
+
+            int i = ((seed = mix64(seed)) & 1) == 0 ? i1 : i2;
+            for (int n = 0; n < MAX_KICKS; n++) {
+                int s = i * SLOTS + (int) ((seed = mix64(seed)) & (SLOTS - 1));
+                char evicted = table[s];
+                table[s] = fp;
+                fp = evicted;
+                i = alt(i, fp);
+                if (put(i, fp)) return ADDED;
+            }
+            victim = fp;
+            victimBucket = i;
+            return ADDED;
+        }
+
+        /** Drops one copy of the key's fingerprint; the stashed victim then gets its chance at a slot. */
+        @Override
+        public void remove(long key) {
+            long h = mix64(key);
+            char fp = (char) ((h >>> 32) & fpMask);
+            if (fp == 0) fp = 1;
+            int i1 = (int) h & bucketMask;
+            int i2 = alt(i1, fp);
+            if (victimBucket >= 0 && victim == fp && (victimBucket == i1 || victimBucket == i2)) {
+                victimBucket = -1;
+                return;
+            }
+            if (!delete(i1, fp) && !delete(i2, fp)) return;
+            if (victimBucket >= 0 && (put(victimBucket, victim) || put(alt(victimBucket, victim), victim))) {
+                victimBucket = -1;
+            }
+        }
+
+        private boolean delete(int bucket, char fp) {
+            int base = bucket * SLOTS;
+            for (int s = 0; s < SLOTS; s++) {
+                if (table[base + s] == fp) {
+                    table[base + s] = 0;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int alt(int bucket, char fp) {
+            return (bucket ^ (int) mix64(fp)) & bucketMask;
+        }
+
+        private boolean contains(int bucket, char fp) {
+            int base = bucket * SLOTS;
+            for (int s = 0; s < SLOTS; s++) if (table[base + s] == fp) return true;
+            return false;
+        }
+
+        private boolean put(int bucket, char fp) {
+            int base = bucket * SLOTS;
+            for (int s = 0; s < SLOTS; s++) {
+                if (table[base + s] == 0) {
+                    table[base + s] = fp;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(table, (char) 0);
+            victimBucket = -1;
+        }
+
+        @Override
+        public long bytes() {
+            return table.length * 2L;
+        }
+
+        @Override
+        public long maxBytes() {
+            return bytes();
+        }
+
+        /** Sparse: (slot, fingerprint) per occupied slot. */
+        @Override
+        public void write(DurableAdClickSystem.MappedFile out) throws IOException {
+            out.putInt(victimBucket);
+            out.putInt(victim);
+            int used = 0;
+            for (char fp : table) if (fp != 0) used++;
+            out.putInt(used);
+            for (int s = 0; s < table.length; s++) {
+                if (table[s] == 0) continue;
+                out.putInt(s);
+                out.putChar(table[s]);
+            }
+        }
+
+        @Override
+        public void read(DurableAdClickSystem.MappedFile in) throws IOException {
+            Arrays.fill(table, (char) 0);
+            victimBucket = in.getInt();
+            victim = (char) in.getInt();
+            for (int n = in.getInt(); n > 0; n--) {
+                int slot = in.getInt();
+                table[slot] = in.getChar();
+            }
+        }
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) {
+        UUID ad = UUID.randomUUID();
+        LocalDateTime t = LocalDateTime.now();
+
+        BoundedDedupeStore exact = new BoundedDedupeStore(10_000);
+        System.out.println("first:  " + exact.markSeen(ad, t, AdEventType.IMPRESSION));   // true
+        System.out.println("dup:    " + exact.markSeen(ad, t, AdEventType.IMPRESSION));   // false
+        System.out.println("click:  " + exact.markSeen(ad, t, AdEventType.CLICK));        // true
+        System.out.println("too old:" + exact.markSeen(ad, t.minusDays(31), AdEventType.CLICK)); // false
+        System.out.println("future: " + exact.markSeen(ad, t.plusYears(1), AdEventType.CLICK));  // false, ring untouched
+        System.out.println("after:  " + exact.markSeen(ad, t.minusSeconds(1), AdEventType.CLICK)); // true
+        System.out.println("out of window (not duplicates): " + exact.outOfWindowCount());     // 2
+        System.out.println("max bytes/ad (exact):  " + exact.maxBytesPerAd());
+
+        BoundedDedupeStore cuckoo = new BoundedDedupeStore(30, Mode.CUCKOO, 10_000, 0.001);
+        int falseDups = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (!cuckoo.markSeen(ad, t.withNano(0).plusNanos(i), AdEventType.IMPRESSION)) falseDups++;
+        }
+        System.out.println("max bytes/ad (cuckoo): " + cuckoo.maxBytesPerAd() + ", false dups=" + falseDups);
+    }
+}
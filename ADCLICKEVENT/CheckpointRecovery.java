@@ -0,0 +1,609 @@
+/*FOLLOW-UP: Crash recovery = checkpoint + write-ahead log
+
+Everything is in memory -> restart = lose 30 days of counters AND dedupe state
+(so re-sent events get double counted too).
+
+Classic recipe:
+1) WAL: every ACCEPTED (non-duplicate) event is appended as a fixed 44-byte record
+        adMsb | adLsb | epochDay | dedupeKey(nanoOfDay<<1|type) | eventId | crc32
+        one synchronized append per batch, fsync per batch (group commit)
+2) Checkpoint: periodically write counters + dedupe rings of every ad to a binary
+        snapshot through a memory-mapped window, then drop WAL files it covers.
+3) Startup: map snapshot -> rebuild arrays -> replay WAL records after the snapshot.
+
+Consistency without stopping ingestion (fuzzy checkpoint):
+- dedupe + count of one event happen under the ad's stripe lock
+- checkpoint reads S = WAL sequence and rotates the WAL to wal-<S>.log FIRST,
+  then writes each ad's counters + dedupe ring under the same stripe lock
+=> event with seq <= S  : applied before S was read -> surely in the snapshot
+   event with seq >  S  : maybe in the snapshot. Replay runs it through dedupe:
+                          in snapshot -> dedupe says duplicate -> skipped
+                          not in it   -> counted now
+So replay is idempotent and no event is lost or counted twice.
+
+Write failures: events are deduped and counted under the stripe lock (a checkpoint must
+see both or neither), then appended. If the append throws, the batch is taken back under the
+same locks (counts decremented, dedupe marks removed) and the WAL refuses every later append,
+so memory never holds events the caller was told failed. Some of that batch may still have
+reached the file; after a restart a retry of them is then rejected as a duplicate, not double counted.
+
+Purge is logged too: once the sink has taken the expired days, a purge record
+        0 | 0 | cutoffEpochDay | PURGE_KEY(-1) | 0 | crc32
+is appended (and fsynced). Replay drops the days before the cutoff at that point of the log,
+without the sink, so a restart neither revives purged days nor dumps them a second time.
+The snapshot needs nothing extra: a purge logged before the checkpoint's rotate finished
+before any ad was written; one logged after is replayed, and dropping is idempotent.
+A crash after the sink but before the record leaves the days in the snapshot/WAL, so they
+are dumped again by the next purge: the sink sees a day at least once, never zero times.
+
+Except for dedupe overflow: an event accepted while its bucket was FULL is counted but not
+remembered, so replay would count it again. Hence eventId (assigned under the stripe lock,
+increasing per stripe) and, for ads whose dedupe ring overflowed, the snapshot stores the
+stripe's last eventId at the moment the ad was written:
+   replayed event hits a FULL bucket -> eventId <= watermark ? already in snapshot : count
+
+Why it is fast: snapshot is sequential primitive data (no object graph, no
+serialization framework), counters and dedupe tables are written sparse (only live
+slots / remembered events, so the snapshot follows traffic, not configured capacity),
+and restore is "read longs -> new AtomicLongArray". Run main() to measure.
+
+Sizing for the 10M-ad target: dedupe tables grow with each day's traffic (BoundedDedupe.java),
+so the heap is ~1.2 KB per live ad (counter ring 0.5 KB, dedupe ring 0.4 KB, map entries,
+small tables), i.e. ~12 GB for 10M ads; dense tables would add ~80 GB. Restore time is linear
+in ads + WAL records (2M ads + 2M records measured at ~17 s on one core).
+
+Java Code*/
+package ParkingSpot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEvent;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventBucket;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+public class DurableAdClickSystem implements AutoCloseable {
+
+    static final long SNAPSHOT_MAGIC = 0x4144434C4B534E50L;   // "ADCLKSNP"
+    static final int SNAPSHOT_VERSION = 2;
+    static final String SNAPSHOT_FILE = "checkpoint.snap";
+    static final int STRIPES = 1024;
+
+    private final Path dir;
+    private final BoundedDedupeStore seenStore;
+    private final RingBufferAdClickSystem counters;
+    private final WriteAheadLog wal;
+    private final boolean fsyncEachBatch;
+    private final Object[] stripes = new Object[STRIPES];
+    private final long[] stripeLastId = new long[STRIPES];          // guarded by the stripe
+    private final AtomicLong nextEventId = new AtomicLong();
+    private final Map<UUID, Long> overflowWatermarks = new HashMap<>();   // restore only
+
+    private DurableAdClickSystem(Path dir, BoundedDedupeStore seenStore,
+                                 ExpiredDaySink sink, boolean fsyncEachBatch) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.seenStore = seenStore;
+        this.counters = new RingBufferAdClickSystem(seenStore, sink);
+        this.fsyncEachBatch = fsyncEachBatch;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+
+        long fromSeq = loadSnapshot();
+        long nextSeq = WriteAheadLog.replay(dir, fromSeq, this::applyReplayed);
+        overflowWatermarks.clear();
+        this.wal = new WriteAheadLog(dir, nextSeq);
+    }
+
+    /** Recover whatever is in dir (empty dir = fresh start). seenStore must be empty. */
+    public static DurableAdClickSystem open(Path dir, BoundedDedupeStore seenStore,
+                                            ExpiredDaySink sink,
+                                            boolean fsyncEachBatch) throws IOException {
+        return new DurableAdClickSystem(dir, seenStore, sink, fsyncEachBatch);
+    }
+
+    // ---------------- Public API ----------------
+
+    /**
+     * Returns once the accepted events of this batch are in the WAL (and fsynced if configured).
+     * If the append fails, the batch's counts and dedupe marks are taken back before rethrowing,
+     * so a retry is not rejected as a duplicate of events that were never made durable.
+     */
+    public void consumeAdEvents(final List<AdEvent> events) throws IOException {
+        long[] accepted = new long[events.size() * WriteAheadLog.FIELDS];
+        BitSet remembered = new BitSet(events.size());             // NEW (not OVERFLOW): unmark on undo
+        int n = 0;
+        for (AdEvent e : events) {
+            long day = e.timestamp.toLocalDate().toEpochDay();
+            long key = (e.timestamp.toLocalTime().toNanoOfDay() << 1) | e.type.ordinal();
+            int r = apply(e.adUUID, day, key, accepted, n);
+            if (r == BoundedDedupeStore.NEW) remembered.set(n / WriteAheadLog.FIELDS);
+            if (r == BoundedDedupeStore.NEW || r == BoundedDedupeStore.OVERFLOW) n += WriteAheadLog.FIELDS;
+        }
+        try {
+            wal.append(accepted, n, fsyncEachBatch);
+        } catch (IOException | RuntimeException ex) {
+            undo(accepted, n, remembered);
+            throw ex;
+        }
+    }
+
+    public List<AdEventBucket> getDailyAdEventHistory(UUID adUUID) {
+        return counters.getDailyAdEventHistory(adUUID);
+    }
+
+    public boolean isAdCappedAtDate(UUID adUUID, LocalDate date) {
+        return counters.isAdCappedAtDate(adUUID, date);
+    }
+
+    /** Dumps the expired days to the sink, then logs the cutoff so replay does not bring them back. */
+    public void purgeOldData(LocalDate cutoffDateExclusive) throws IOException {
+        counters.purgeOldData(cutoffDateExclusive);
+        wal.append(new long[] {0, 0, cutoffDateExclusive.toEpochDay(), WriteAheadLog.PURGE_KEY, 0},
+                WriteAheadLog.FIELDS, true);
+    }
+
+    /**
+     * Fuzzy checkpoint, safe to run concurrently with ingestion (see header).
+     * Written to a temp file and renamed, so a crash mid-checkpoint keeps the old one.
+     * Checkpoints run one at a time: they share the temp file and each deletes the WAL before its own sequence.
+     */
+    public synchronized void checkpoint() throws IOException {
+        long walSeq = wal.rotate();
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (MappedFile out = MappedFile.create(tmp)) {
+            out.putLong(SNAPSHOT_MAGIC);
+            out.putInt(SNAPSHOT_VERSION);
+            out.putLong(walSeq);
+            for (UUID ad : counters.adIds()) {
+                int stripe = stripeOf(ad);
+                synchronized (stripes[stripe]) {
+                    AtomicLongArray counts = counters.countersOf(ad);
+                    if (counts == null) continue;                 // purged meanwhile
+                    boolean overflowed = seenStore.hasOverflowed(ad);
+                    out.putByte((byte) (overflowed ? 2 : 1));
+                    out.putLong(ad.getMostSignificantBits());
+                    out.putLong(ad.getLeastSignificantBits());
+                    if (overflowed) out.putLong(stripeLastId[stripe]);
+                    writeCounters(counts, out);
+                    seenStore.writeAd(ad, out);
+                }
+            }
+            out.putByte((byte) 0);
+            out.putLong(nextEventId.get());                       // >= every id in this snapshot
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        wal.deleteBefore(walSeq);
+    }
+
+    @Override
+    public void close() throws IOException {
+        wal.close();
+    }
+
+    // ---------------- Apply / replay ----------------
+
+    private static int stripeOf(UUID ad) {
+        return (ad.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * Dedupe + count one event; if it is accepted (NEW or OVERFLOW) its WAL record, with a fresh
+     * event id, goes to record[at..at + FIELDS).
+     * @return the seenStore.mark() result.
+     */
+    private int apply(UUID ad, long epochDay, long key, long[] record, int at) {
+        AdEventType type = (key & 1) == 0 ? AdEventType.IMPRESSION : AdEventType.CLICK;
+        int stripe = stripeOf(ad);
+        synchronized (stripes[stripe]) {
+            int r = seenStore.mark(ad, epochDay, key >>> 1, type);
+            if (r == BoundedDedupeStore.DUPLICATE || r == BoundedDedupeStore.OUT_OF_WINDOW) return r;
+            counters.increment(ad, epochDay, type);
+            record[at] = ad.getMostSignificantBits();
+            record[at + 1] = ad.getLeastSignificantBits();
+            record[at + 2] = epochDay;
+            record[at + 3] = key;
+            record[at + 4] = stripeLastId[stripe] = nextEventId.incrementAndGet();
+            return r;
+        }
+    }
+
+    /**
+     * Take back events the WAL did not accept. Under the stripe lock like apply(), so a checkpoint
+     * sees each event either counted and marked or neither. Their ids are simply never used.
+     */
+    private void undo(long[] records, int length, BitSet remembered) {
+        for (int at = 0; at < length; at += WriteAheadLog.FIELDS) {
+            UUID ad = new UUID(records[at], records[at + 1]);
+            long epochDay = records[at + 2], key = records[at + 3];
+            AdEventType type = (key & 1) == 0 ? AdEventType.IMPRESSION : AdEventType.CLICK;
+            synchronized (stripes[stripeOf(ad)]) {
+                counters.decrement(ad, epochDay, type);
+                if (remembered.get(at / WriteAheadLog.FIELDS)) seenStore.unmark(ad, epochDay, key >>> 1, type);
+            }
+        }
+    }
+
+    /** Startup only (single thread). */
+    private void applyReplayed(long msb, long lsb, long epochDay, long key, long id) {
+        if (key == WriteAheadLog.PURGE_KEY) {                       // already dumped before it was logged
+            counters.dropOldData(LocalDate.ofEpochDay(epochDay));
+            return;
+        }
+        UUID ad = new UUID(msb, lsb);
+        AdEventType type = (key & 1) == 0 ? AdEventType.IMPRESSION : AdEventType.CLICK;
+        int r = seenStore.mark(ad, epochDay, key >>> 1, type);
+        if (r == BoundedDedupeStore.DUPLICATE) return;              // in the snapshot
+        if (r == BoundedDedupeStore.OUT_OF_WINDOW) return;          // its day expired while we were down
+        if (r == BoundedDedupeStore.OVERFLOW) {
+            Long watermark = overflowWatermarks.get(ad);            // none: ring was not full at snapshot time,
+            if (watermark != null && id <= watermark) return;       // so a snapshotted event would be PRESENT
+        }
+        counters.increment(ad, epochDay, type);
+        int stripe = stripeOf(ad);
+        stripeLastId[stripe] = Math.max(stripeLastId[stripe], id);
+        if (id > nextEventId.get()) nextEventId.set(id);
+    }
+
+    // ---------------- Snapshot ----------------
+
+    private static void writeCounters(AtomicLongArray counts, MappedFile out) throws IOException {
+        int live = 0;
+        for (int i = 0; i < counts.length(); i++) if (RingBufferAdClickSystem.live(counts.get(i)) != 0) live++;
+        out.putByte((byte) live);
+        for (int i = 0; i < counts.length() && live > 0; i++) {
+            long v = RingBufferAdClickSystem.live(counts.get(i));
+            if (v == 0) continue;
+            out.putByte((byte) i);
+            out.putLong(v);
+            live--;
+        }
+        while (live-- > 0) {           // purge zeroes slots without the stripe lock; keep the record well-formed
+            out.putByte((byte) 0);
+            out.putLong(0L);
+        }
+    }
+
+    /** @return WAL sequence to replay from. */
+    private long loadSnapshot() throws IOException {
+        Path file = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) return 0;
+        try (MappedFile in = MappedFile.open(file)) {
+            if (in.getLong() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("not a checkpoint file: " + file);
+            }
+            long walSeq = in.getLong();
+            int size = 2 * RingBufferAdClickSystem.RETENTION_DAYS;
+            byte tag;
+            while ((tag = in.getByte()) != 0) {
+                UUID ad = new UUID(in.getLong(), in.getLong());
+                if (tag == 2) {
+                    long watermark = in.getLong();
+                    overflowWatermarks.put(ad, watermark);
+                    int stripe = stripeOf(ad);
+                    stripeLastId[stripe] = Math.max(stripeLastId[stripe], watermark);
+                }
+                AtomicLongArray counts = new AtomicLongArray(size);
+                for (int live = in.getByte() & 0xff; live > 0; live--) {
+                    int idx = in.getByte();
+                    long v = in.getLong();
+                    if (v != 0) counts.set(idx, v);
+                }
+                counters.restoreCounters(ad, counts);
+                seenStore.readAd(ad, in);
+            }
+            nextEventId.set(in.getLong());
+            return walSeq;
+        }
+    }
+
+    // ---------------- Memory-mapped sequential file ----------------
+
+    /** Sequential reader/writer over a sliding memory-mapped window, so files can exceed 2 GB. */
+    static final class MappedFile implements AutoCloseable {
+        static final long WINDOW = 64L << 20;
+
+        private final FileChannel channel;
+        private final boolean writable;
+        private MappedByteBuffer map;
+        private long base;
+
+        private MappedFile(FileChannel channel, boolean writable) {
+            this.channel = channel;
+            this.writable = writable;
+        }
+
+        static MappedFile create(Path path) throws IOException {
+            return new MappedFile(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), true);
+        }
+
+        static MappedFile open(Path path) throws IOException {
+            return new MappedFile(FileChannel.open(path, StandardOpenOption.READ), false);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (map != null && map.remaining() >= bytes) return;
+            long pos = position();
+            if (map != null && writable) map.force();
+            long size = writable ? WINDOW : Math.min(WINDOW, channel.size() - pos);
+            if (size < bytes) throw new EOFException("truncated file at " + pos);
+            map = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, pos, size);
+            base = pos;
+        }
+
+        long position() {
+            return map == null ? 0 : base + map.position();
+        }
+
+        void putByte(byte v) throws IOException { ensure(1); map.put(v); }
+
+        void putInt(int v) throws IOException { ensure(4); map.putInt(v); }
+
+        void putChar(char v) throws IOException { ensure(2); map.putChar(v); }
+
+        void putLong(long v) throws IOException { ensure(8); map.putLong(v); }
+
+        byte getByte() throws IOException { ensure(1); return map.get(); }
+
+        char getChar() throws IOException { ensure(2); return map.getChar(); }
+
+        int getInt() throws IOException { ensure(4); return map.getInt(); }
+
+        long getLong() throws IOException { ensure(8); return map.getLong(); }
+
+        @Override
+        public void close() throws IOException {
+            if (writable) {
+                long size = position();
+                if (map != null) map.force();
+                channel.truncate(size);
+                channel.force(true);
+            }
+            channel.close();
+        }
+    }
+
+    // ---------------- Write-ahead log ----------------
+
+    static final class WriteAheadLog implements AutoCloseable {
+        static final int FIELDS = 5;
+        static final int RECORD_BYTES = FIELDS * 8 + 4;
+        static final long PURGE_KEY = -1;          // event keys are >= 0; epochDay field = cutoff
+        static final String PREFIX = "wal-";
+        static final String SUFFIX = ".log";
+
+        interface RecordConsumer {
+            void accept(long msb, long lsb, long epochDay, long key, long eventId);
+        }
+
+        private final Path dir;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        private final CRC32 crc = new CRC32();
+        private FileChannel channel;
+        private long sequence;
+        private IOException failure;               // first write error; the log refuses everything after it
+
+        WriteAheadLog(Path dir, long sequence) throws IOException {
+            this.dir = dir;
+            this.sequence = sequence;
+            openFile();
+        }
+
+        /**
+         * One lock + one write per batch; every caller of a batch shares its fsync.
+         * After a failed write the file may end in part of a batch, so the log fails fast from then on.
+         */
+        synchronized void append(long[] fields, int length, boolean fsync) throws IOException {
+            checkFailure();
+            try {
+                for (int i = 0; i < length; i += FIELDS) {
+                    if (buf.remaining() < RECORD_BYTES) drain();
+                    int start = buf.position();
+                    for (int f = 0; f < FIELDS; f++) buf.putLong(fields[i + f]);
+                    crc.reset();
+                    crc.update(buf.duplicate().position(start).limit(buf.position()));
+                    buf.putInt((int) crc.getValue());
+                    sequence++;
+                }
+                drain();
+                if (fsync) channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                buf.clear();
+                throw e;
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) throw new IOException("write-ahead log failed earlier", failure);
+        }
+
+        /** Close the current file and start wal-<sequence>.log; returns that sequence. */
+        synchronized long rotate() throws IOException {
+            checkFailure();
+            drain();
+            channel.force(false);
+            channel.close();
+            openFile();
+            return sequence;
+        }
+
+        void deleteBefore(long seq) throws IOException {
+            for (Path p : files(dir)) {
+                if (startOf(p) < seq) Files.deleteIfExists(p);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            drain();
+            channel.force(false);
+            channel.close();
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) channel.write(buf);
+            buf.clear();
+        }
+
+        private void openFile() throws IOException {
+            channel = FileChannel.open(dir.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX)),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Replays every record with sequence >= fromSeq; a torn or corrupt tail ends its file.
+         * @return the next sequence to write.
+         */
+        static long replay(Path dir, long fromSeq, RecordConsumer out) throws IOException {
+            long next = fromSeq;
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            CRC32 crc = new CRC32();
+            for (Path p : files(dir)) {
+                long seq = startOf(p);
+                if (seq < fromSeq) continue;           // covered by the snapshot, delete pending
+                try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                    buf.clear();
+                    boolean eof = false, torn = false;
+                    while (!eof && !torn) {
+                        eof = ch.read(buf) < 0;
+                        buf.flip();
+                        while (buf.remaining() >= RECORD_BYTES) {
+                            int start = buf.position();
+                            long msb = buf.getLong(), lsb = buf.getLong(), day = buf.getLong(), key = buf.getLong();
+                            long id = buf.getLong();
+                            crc.reset();
+                            crc.update(buf.duplicate().position(start).limit(buf.position()));
+                            if (buf.getInt() != (int) crc.getValue()) {
+                                torn = true;
+                                break;
+                            }
+                            out.accept(msb, lsb, day, key, id);
+                            seq++;
+                        }
+                        buf.compact();
+                    }
+                }
+                next = Math.max(next, seq);
+            }
+            return next;
+        }
+
+        static List<Path> files(Path dir) throws IOException {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+                for (Path p : ds) files.add(p);
+            }
+            Collections.sort(files);
+            return files;
+        }
+
+        static long startOf(Path p) {
+            String name = p.getFileName().toString();
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        }
+    }
+
+    // ---------------- Startup benchmark ----------------
+
+    /**
+     * java -Xmx16g ParkingSpot.DurableAdClickSystem [ads] [walEvents] [eventsPerDay]
+     * Defaults are the restore target: 10M ads with 2 events each, then 2M events only in the WAL.
+     * Dedupe tables hold up to eventsPerDay per ad-day but start small, so heap is ~1.2 KB per ad;
+     * pass a smaller ads count on a smaller heap (2M ads fit in -Xmx4g).
+     * The snapshot only holds remembered events, so its size follows traffic, not capacity.
+     */
+    public static void main(String[] args) throws Exception {
+        int ads = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int walEvents = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        int eventsPerDay = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        Path dir = Files.createTempDirectory("adclick-durable");
+
+        UUID[] ids = new UUID[ads];
+        LocalDateTime now = LocalDateTime.now();
+        try (DurableAdClickSystem svc = open(dir, new BoundedDedupeStore(eventsPerDay), ExpiredDaySink.NONE, false)) {
+            List<AdEvent> batch = new ArrayList<>(1024);
+            for (int i = 0; i < ads; i++) {
+                ids[i] = UUID.randomUUID();
+                batch.add(new AdEvent(ids[i], now.minusDays(1), AdEventType.IMPRESSION));
+                batch.add(new AdEvent(ids[i], now, AdEventType.CLICK));
+                if (batch.size() >= 1024) { svc.consumeAdEvents(batch); batch.clear(); }
+            }
+            svc.consumeAdEvents(batch);
+
+            long t0 = System.nanoTime();
+            svc.checkpoint();
+            long denseBytes = 2L * ads * (svc.seenStore.maxBytesPerAd() / RingBufferAdClickSystem.RETENTION_DAYS);
+            System.out.printf("checkpoint: %d ads (dedupe capacity %d/day, %d MB of tables, %d MB if dense), %d MB in %d ms%n",
+                    ads, eventsPerDay, svc.seenStore.retainedBytes() >> 20, denseBytes >> 20,
+                    Files.size(dir.resolve(SNAPSHOT_FILE)) >> 20, (System.nanoTime() - t0) / 1_000_000);
+
+            batch.clear();
+            for (int i = 0; i < walEvents; i++) {
+                batch.add(new AdEvent(ids[i % ads], now.minusNanos(i + 1), AdEventType.IMPRESSION));
+                if (batch.size() >= 1024) { svc.consumeAdEvents(batch); batch.clear(); }
+            }
+            svc.consumeAdEvents(batch);
+            svc.consumeAdEvents(List.of(new AdEvent(ids[0], now, AdEventType.CLICK)));   // duplicate
+        }   // "crash": no checkpoint, only the WAL has the tail
+
+        System.gc();
+        long t0 = System.nanoTime();
+        try (DurableAdClickSystem restored = open(dir, new BoundedDedupeStore(eventsPerDay), ExpiredDaySink.NONE, false)) {
+            System.out.printf("restore: %d ads + %d WAL events in %d ms%n", ads, walEvents,
+                    (System.nanoTime() - t0) / 1_000_000);
+            System.out.println("ad[0] history: " + restored.getDailyAdEventHistory(ids[0]));
+        }
+
+        overflowReplayCheck();
+        purgeReplayCheck();
+    }
+
+    /** Yesterday is purged (dumped once) after the checkpoint: a restart must not revive or re-dump it. */
+    private static void purgeReplayCheck() throws IOException {
+        Path dir = Files.createTempDirectory("adclick-purge");
+        List<String> dumped = new ArrayList<>();
+        ExpiredDaySink sink = (ad, date, imp, clk) -> dumped.add(date + ":" + imp);
+        UUID ad = UUID.randomUUID();
+        LocalDateTime now = LocalDateTime.now();
+        try (DurableAdClickSystem svc = open(dir, new BoundedDedupeStore(16), sink, false)) {
+            svc.consumeAdEvents(List.of(new AdEvent(ad, now.minusDays(1), AdEventType.IMPRESSION),
+                    new AdEvent(ad, now, AdEventType.IMPRESSION)));
+            svc.checkpoint();
+            svc.purgeOldData(now.toLocalDate());
+        }
+        try (DurableAdClickSystem restored = open(dir, new BoundedDedupeStore(16), sink, false)) {
+            restored.purgeOldData(now.toLocalDate());
+            System.out.println("purged before crash, after restore: " + restored.getDailyAdEventHistory(ad)
+                    + ", sink saw " + dumped);
+        }
+    }
+
+    /** Capacity 4/day, 10 events before and 5 after the checkpoint: both runs must report 15. */
+    private static void overflowReplayCheck() throws IOException {
+        Path dir = Files.createTempDirectory("adclick-overflow");
+        UUID ad = UUID.randomUUID();
+        LocalDateTime day = LocalDateTime.now().withHour(1);
+        List<AdEventBucket> before;
+        try (DurableAdClickSystem svc = open(dir, new BoundedDedupeStore(4), ExpiredDaySink.NONE, false)) {
+            for (int i = 0; i < 10; i++) svc.consumeAdEvents(List.of(new AdEvent(ad, day.plusSeconds(i), AdEventType.IMPRESSION)));
+            svc.checkpoint();
+            for (int i = 10; i < 15; i++) svc.consumeAdEvents(List.of(new AdEvent(ad, day.plusSeconds(i), AdEventType.IMPRESSION)));
+            before = svc.getDailyAdEventHistory(ad);
+        }
+        try (DurableAdClickSystem restored = open(dir, new BoundedDedupeStore(4), ExpiredDaySink.NONE, false)) {
+            System.out.println("overflowing ad before crash: " + before + ", after restore: "
+                    + restored.getDailyAdEventHistory(ad));
+        }
+    }
+}
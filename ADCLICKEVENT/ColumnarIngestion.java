@@ -0,0 +1,156 @@
+/*FOLLOW-UP: Columnar, allocation-free bulk ingestion
+
+consumeAdEvents(List<AdEvent>) per event allocates:
+  AdEvent + UUID + LocalDateTime (+ LocalDate/LocalTime inside) + SeenEvent (+ HashMap node)
+At millions of events/sec that is GBs/sec of garbage -> GC pauses.
+
+Second entry point that takes a columnar batch instead:
+  long[] adMsb, long[] adLsb, long[] epochMillis, byte[] type      (parallel arrays)
+or a ByteBuffer of fixed 25-byte records:
+  adMsb long | adLsb long | epochMillis long | type byte
+
+Per event we only do arithmetic:
+  epochDay  = floorDiv(millis + zoneOffset, 86_400_000)
+  nanoOfDay = floorMod(millis + zoneOffset, 86_400_000) * 1_000_000
+and feed RingBufferAdClickSystem.accept(...) (primitive dedupe + CAS counters).
+
+The one object we still need is the UUID key of the store's maps. An intern table
+(open addressing on msb/lsb -> canonical UUID) keeps one UUID per hot ad, so
+steady state allocates NOTHING per event. The table is bounded; when full it is
+cleared and refilled (a few UUIDs, not per-event garbage).
+
+One ColumnarIngestor per ingest thread (intern table is not thread-safe);
+the stores behind it are.
+
+Java Code*/
+package ParkingSpot;
+
+import java.nio.ByteBuffer;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.UUID;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+public class ColumnarIngestor {
+
+    static final int RECORD_BYTES = 8 + 8 + 8 + 1;
+    static final long MILLIS_PER_DAY = 86_400_000L;
+    private static final AdEventType[] TYPES = AdEventType.values();
+
+    private final RingBufferAdClickSystem store;
+    private final long zoneOffsetMillis;
+
+    // UUID intern table
+    private final long[] msbs;
+    private final long[] lsbs;
+    private final UUID[] uuids;
+    private final int mask;
+    private final int maxInterned;
+    private int interned;
+
+    public ColumnarIngestor(RingBufferAdClickSystem store, ZoneOffset zone, int internCapacity) {
+        this.store = store;
+        this.zoneOffsetMillis = zone.getTotalSeconds() * 1000L;
+        int cap = Integer.highestOneBit(Math.max(2, internCapacity * 2) - 1) << 1;   // load <= 0.5
+        this.msbs = new long[cap];
+        this.lsbs = new long[cap];
+        this.uuids = new UUID[cap];
+        this.mask = cap - 1;
+        this.maxInterned = cap / 2;
+    }
+
+    // ---------------- Public API ----------------
+
+    /** Parallel arrays, events [0, count). type: 0 = IMPRESSION, 1 = CLICK. @return accepted (non-duplicate) events. */
+    public int consume(long[] adMsb, long[] adLsb, long[] epochMillis, byte[] type, int count) {
+        int accepted = 0;
+        for (int i = 0; i < count; i++) {
+            if (acceptOne(adMsb[i], adLsb[i], epochMillis[i], type[i])) accepted++;
+        }
+        return accepted;
+    }
+
+    /** Fixed-width records from position to limit (heap or direct buffer); position is not moved. */
+    public int consume(ByteBuffer records) {
+        int accepted = 0;
+        int end = records.limit() - RECORD_BYTES;
+        for (int p = records.position(); p <= end; p += RECORD_BYTES) {
+            if (acceptOne(records.getLong(p), records.getLong(p + 8), records.getLong(p + 16), records.get(p + 24))) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    private boolean acceptOne(long msb, long lsb, long millis, byte type) {
+        long local = millis + zoneOffsetMillis;
+        long epochDay = Math.floorDiv(local, MILLIS_PER_DAY);
+        long nanoOfDay = Math.floorMod(local, MILLIS_PER_DAY) * 1_000_000L;
+        return store.accept(intern(msb, lsb), epochDay, nanoOfDay, TYPES[type]);
+    }
+
+    // ---------------- UUID interning ----------------
+
+    UUID intern(long msb, long lsb) {
+        int i = (int) BoundedDedupeStore.mix64(msb ^ Long.rotateLeft(lsb, 32)) & mask;
+        while (true) {
+            UUID u = uuids[i];
+            if (u == null) break;
+            if (msbs[i] == msb && lsbs[i] == lsb) return u;
+            i = (i + 1) & mask;
+        }
+        if (interned == maxInterned) {             // bounded: start over instead of growing
+            Arrays.fill(uuids, null);
+            interned = 0;
+            return intern(msb, lsb);
+        }
+        UUID u = new UUID(msb, lsb);
+        msbs[i] = msb;
+        lsbs[i] = lsb;
+        uuids[i] = u;
+        interned++;
+        return u;
+    }
+
+    // ---------------- Demo: throughput + bytes allocated per event ----------------
+    public static void main(String[] args) {
+        int ads = 1_000;
+        int batch = 1 << 16;
+        int batches = 100;
+
+        RingBufferAdClickSystem store = new RingBufferAdClickSystem(new BoundedDedupeStore(8_192), ExpiredDaySink.NONE);
+        ColumnarIngestor ingestor = new ColumnarIngestor(store, ZoneOffset.UTC, ads);
+
+        UUID[] ids = new UUID[ads];
+        for (int i = 0; i < ads; i++) ids[i] = UUID.randomUUID();
+        long[] msb = new long[batch], lsb = new long[batch], millis = new long[batch];
+        byte[] type = new byte[batch];
+        long base = System.currentTimeMillis() - MILLIS_PER_DAY;
+
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long events = 0, accepted = 0, alloc0 = 0, t0 = 0;
+        for (int b = 0; b < batches; b++) {
+            for (int i = 0; i < batch; i++) {
+                UUID id = ids[(i * 31 + b) % ads];
+                msb[i] = id.getMostSignificantBits();
+                lsb[i] = id.getLeastSignificantBits();
+                millis[i] = base + (long) b * batch + i;
+                type[i] = (byte) (i % 50 == 0 ? 1 : 0);
+            }
+            if (b == batches / 2) {                 // measure the warmed-up second half
+                alloc0 = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+                t0 = System.nanoTime();
+                events = 0;
+                accepted = 0;
+            }
+            accepted += ingestor.consume(msb, lsb, millis, type, batch);
+            events += batch;
+        }
+        long ns = System.nanoTime() - t0;
+        long bytes = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - alloc0;
+        System.out.printf("%,d events (%,d accepted): %.1f M events/s, %.3f bytes allocated/event%n",
+                events, accepted, events * 1e3 / ns, (double) bytes / events);
+    }
+}
@@ -131,13 +131,54 @@ public class MultiThreadedAdClickSystem {
      */
     private final List<String> persistentStore = Collections.synchronizedList(new ArrayList<>());
 
+    /**
+     * Where purged days go. Default: the mock store above; pass a SegmentLog for real persistence.
+     * Called after the ad lock is released.
+     */
+    private final ExpiredDaySink expiredDaySink;
+
     // Optional scheduled purger
     private final ScheduledExecutorService purgerScheduler = Executors.newSingleThreadScheduledExecutor();
 
+    /**
+     * Counters / latency histograms (see Metrics.java). Pull with metrics().snapshot() or over JMX.
+     */
+    private final AdClickMetrics metrics = new AdClickMetrics();
+
+    /**
+     * Rolling-window totals kept up to date on ingest (see RollingCapFeed.java):
+     * isAdCappedNow is one read, cap flips go out on capFeed().
+     */
+    private final RollingCapTracker capTracker = new RollingCapTracker(LocalDate.now());
+
+    /**
+     * Per-day count-min + space-saving sketches fed on ingest (see TopKSketch.java):
+     * getTopAds answers from bounded memory instead of walking eventStore.
+     */
+    private final HeavyHitterTracker topAds = new HeavyHitterTracker();
+
+    /**
+     * Per-ad cumulative day counters fed on ingest (see RangeAggregates.java):
+     * getAggregates sums any day range of many ads in O(1) per ad.
+     */
+    private final PrefixSumAggregates aggregates = new PrefixSumAggregates(ForkJoinPool.commonPool());
+
     public MultiThreadedAdClickSystem() {
+        this(null);
+    }
+
+    public MultiThreadedAdClickSystem(ExpiredDaySink expiredDaySink) {
+        this.expiredDaySink = expiredDaySink != null ? expiredDaySink : this::dumpExpiredDataToPersistentStore;
+        metrics.gauge("ads", eventStore::size);
+        metrics.gauge("adsWithSeenEvents", seenStore::size);
+        metrics.gauge("adLocks", adLocks::size);
+        metrics.gauge("persistedRecords", persistentStore::size);
+        metrics.gauge("capFeedListenerErrors", capTracker::listenerErrors);
+
         // start background purge that runs every minute (configurable)
         purgerScheduler.scheduleAtFixedRate(() -> {
             try {
+                capTracker.advanceTo(LocalDate.now());
                 LocalDate cutoff = LocalDate.now().minusDays(RETENTION_DAYS);
                 purgeOldData(cutoff);
             } catch (Throwable t) {
@@ -153,6 +194,9 @@ public class MultiThreadedAdClickSystem {
      * Deduplication and counter increments are atomic-ish (no global lock).
      */
     public void consumeAdEvents(final List<AdEvent> events) {
+        long start = System.nanoTime();
+        int duplicates = 0;
+
         // process each event (can be parallelized by caller if desired)
         for (AdEvent e : events) {
 
@@ -163,7 +207,10 @@ public class MultiThreadedAdClickSystem {
 
             // add() is atomic on concurrent set; if already present, it's a duplicate and skip
             boolean isNew = seenSet.add(key);
-            if (!isNew) continue;
+            if (!isNew) {
+                duplicates++;
+                continue;
+            }
 
             // Ensure per-ad history map exists (atomic create)
             ConcurrentSkipListMap<LocalDate, DailyCounter> history =
@@ -176,7 +223,17 @@ public class MultiThreadedAdClickSystem {
             // Thread-safe counter increment using LongAdder
             if (e.type == AdEventType.IMPRESSION) dc.impressions.increment();
             else dc.clicks.increment();
+
+            capTracker.onEvent(e.adUUID, date, e.type);
+            topAds.onEvent(e.adUUID, date, e.type);
+            aggregates.onEvent(e.adUUID, date, e.type);
         }
+
+        // one add per batch keeps the per-event metrics cost at a local increment;
+        // latency is per call (whole batch), not per event (see Metrics.java)
+        metrics.eventsIngested.add(events.size() - duplicates);
+        metrics.duplicatesDropped.add(duplicates);
+        metrics.ingestBatchNanos.record(System.nanoTime() - start);
     }
 
     /**
@@ -222,23 +279,52 @@ public class MultiThreadedAdClickSystem {
         return impressions >= IMPRESSION_LIMIT && clicks == 0;
     }
 
+    /** O(1): capped in the rolling window ending today (maintained on ingest). */
+    public boolean isAdCappedNow(final UUID adUUID) {
+        return capTracker.isCappedNow(adUUID);
+    }
+
+    /** Capped-ad change feed: subscribe for a snapshot followed by every flip. */
+    public RollingCapTracker capFeed() {
+        return capTracker;
+    }
+
+    /** Approximate top-k ads of a day with error bounds (sketches, not a scan of eventStore). */
+    public HeavyHitterTracker.TopAds getTopAds(LocalDate date, int k, HeavyHitterTracker.Metric metric) {
+        return topAds.getTopAds(date, k, metric);
+    }
+
+    /** Impressions / clicks of each ad over [from, to], as primitive arrays in input order (-1 = unknown ad). */
+    public PrefixSumAggregates.Aggregates getAggregates(Collection<UUID> ads, LocalDate from, LocalDate to) {
+        return aggregates.getAggregates(ads, from, to);
+    }
+
     // ---------------- Purge / Persistence ----------------
 
     /**
      * Remove all entries older than cutoffDateExclusive.
-     * For each removed day we call dumpExpiredDataToPersistentStore (async or sync).
+     * Each removed day is handed to the expiredDaySink once the ad lock is released. If the sink
+     * throws, the days it has not accepted are merged back into memory and the exception rethrown.
      *
      * This method is safe to call concurrently with ingestion because:
      * - We acquire a per-ad lock while purging that ad to avoid races with ingestion for that ad.
      * - Ingestion uses computeIfAbsent / atomic operations so it can continue for other ads.
      */
     public void purgeOldData(LocalDate cutoffDateExclusive) {
+        long start = System.nanoTime();
+
         // Copy keys to avoid iterating over a concurrent map's keyset while mutating
         List<UUID> ads = new ArrayList<>(eventStore.keySet());
 
         for (UUID ad : ads) {
+            Map<LocalDate, DailyCounter> removed = null;
             ReentrantLock lock = adLocks.computeIfAbsent(ad, k -> new ReentrantLock());
-            lock.lock();
+            if (!lock.tryLock()) {
+                // only time the wait when the lock is actually contended
+                long waitStart = System.nanoTime();
+                lock.lock();
+                metrics.lockWaitNanos.record(System.nanoTime() - waitStart);
+            }
             try {
                 ConcurrentSkipListMap<LocalDate, DailyCounter> history = eventStore.get(ad);
                 if (history == null || history.isEmpty()) {
@@ -246,6 +332,8 @@ public class MultiThreadedAdClickSystem {
                     eventStore.remove(ad);
                     seenStore.remove(ad);
                     adLocks.remove(ad);
+                    capTracker.remove(ad);
+                    aggregates.remove(ad);
                     continue;
                 }
 
@@ -256,35 +344,163 @@ public class MultiThreadedAdClickSystem {
                 // copy the keys to remove to avoid ConcurrentModification
                 List<LocalDate> toRemove = new ArrayList<>(expiredView.keySet());
 
+                removed = new TreeMap<>();
                 for (LocalDate day : toRemove) {
                     DailyCounter dc = history.remove(day);
-                    if (dc != null) {
-                        dumpExpiredDataToPersistentStore(ad, day, dc);
-                    }
+                    if (dc != null) removed.put(day, dc);
                 }
 
                 if (history.isEmpty()) {
                     eventStore.remove(ad);
                     seenStore.remove(ad);
                     adLocks.remove(ad);
+                    capTracker.remove(ad);
+                    aggregates.remove(ad);
                 }
             } finally {
                 lock.unlock();
             }
+
+            // persistence I/O outside the ad lock, so ingestion for this ad never waits on it
+            if (removed != null) {
+                Iterator<Map.Entry<LocalDate, DailyCounter>> it = removed.entrySet().iterator();
+                try {
+                    while (it.hasNext()) {
+                        Map.Entry<LocalDate, DailyCounter> e = it.next();
+                        DailyCounter dc = e.getValue();
+                        expiredDaySink.dump(ad, e.getKey(), dc.impressions.sum(), dc.clicks.sum());
+                        it.remove();
+                    }
+                } catch (RuntimeException ex) {
+                    // the failed day and everything after it are still only in `removed`: put them
+                    // back so the next purge retries them instead of losing them
+                    restoreUndumped(ad, removed);
+                    throw ex;
+                }
+            }
         }
+
+        topAds.purgeBefore(cutoffDateExclusive);
+        aggregates.purgeBefore(cutoffDateExclusive);
+        metrics.purgeNanos.record(System.nanoTime() - start);
     }
 
     /**
-     * Simulated persistent write. In prod this would be async write to Kafka / S3 / DB.
-     * Kept synchronous here for simplicity; you can offload to a queue for better throughput.
+     * Merge days the sink did not accept back into the ad's history. Adds rather than puts, since
+     * a late event may have re-created one of those days after it was removed.
      */
-    private void dumpExpiredDataToPersistentStore(UUID adId, LocalDate date, DailyCounter dc) {
-        String record = "[PERSIST] ad=" + adId + ", date=" + date + ", " + dc;
+    private void restoreUndumped(UUID ad, Map<LocalDate, DailyCounter> undumped) {
+        if (undumped.isEmpty()) return;
+        ReentrantLock lock = adLocks.computeIfAbsent(ad, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            ConcurrentSkipListMap<LocalDate, DailyCounter> history =
+                    eventStore.computeIfAbsent(ad, k -> new ConcurrentSkipListMap<>());
+            for (Map.Entry<LocalDate, DailyCounter> e : undumped.entrySet()) {
+                DailyCounter dc = history.computeIfAbsent(e.getKey(), d -> new DailyCounter());
+                dc.impressions.add(e.getValue().impressions.sum());
+                dc.clicks.add(e.getValue().clicks.sum());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Default sink: simulated persistent write. In prod this would be async write to Kafka / S3 / DB;
+     * SegmentLog (SegmentLog.java) is the queued, group-committed version.
+     */
+    private void dumpExpiredDataToPersistentStore(UUID adId, LocalDate date, long impressions, long clicks) {
+        String record = "[PERSIST] ad=" + adId + ", date=" + date + ", impressions=" + impressions + ", clicks=" + clicks;
         persistentStore.add(record);
         // for debug visibility
         System.out.println(record);
     }
 
+    // ---------------- Partition handoff (see PartitionedCluster.java) ----------------
+
+    /**
+     * Everything one ad owns, detached from the node: day counters + dedupe set + rolling cap
+     * window. Top-K sketches and range prefix sums are rebuilt from the exact day counts on
+     * both sides.
+     */
+    static class AdState {
+        final UUID adUUID;
+        final NavigableMap<LocalDate, long[]> days;   // date -> {impressions, clicks}
+        final Set<SeenEvent> seen;
+        final RollingCapTracker.WindowState capWindow; // null if the ad had none
+
+        AdState(UUID adUUID, NavigableMap<LocalDate, long[]> days, Set<SeenEvent> seen,
+                RollingCapTracker.WindowState capWindow) {
+            this.adUUID = adUUID;
+            this.days = days;
+            this.seen = seen;
+            this.capWindow = capWindow;
+        }
+    }
+
+    /** Weakly consistent view of the ads this node currently holds. */
+    Set<UUID> adIds() {
+        return eventStore.keySet();
+    }
+
+    boolean hasAd(UUID adUUID) {
+        return eventStore.containsKey(adUUID) || seenStore.containsKey(adUUID);
+    }
+
+    /**
+     * Remove an ad and return its state. The caller (router) must make sure no ingestion
+     * for this ad runs concurrently; the ad lock only protects against our own purge.
+     */
+    AdState exportAd(UUID adUUID) {
+        ReentrantLock lock = adLocks.computeIfAbsent(adUUID, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            NavigableMap<LocalDate, long[]> days = new TreeMap<>();
+            ConcurrentSkipListMap<LocalDate, DailyCounter> history = eventStore.remove(adUUID);
+            if (history != null) {
+                for (Map.Entry<LocalDate, DailyCounter> e : history.entrySet()) {
+                    days.put(e.getKey(), new long[] { e.getValue().impressions.sum(), e.getValue().clicks.sum() });
+                }
+            }
+            Set<SeenEvent> seen = seenStore.remove(adUUID);
+            RollingCapTracker.WindowState capWindow = capTracker.exportWindow(adUUID);   // un-caps it here
+            topAds.removeAd(adUUID, days);
+            aggregates.remove(adUUID);
+            return new AdState(adUUID, days, seen == null ? Collections.emptySet() : seen, capWindow);
+        } finally {
+            lock.unlock();
+            adLocks.remove(adUUID);
+        }
+    }
+
+    /**
+     * Merge a handed-off ad into this node (adds counters, unions dedupe sets, merges cap window,
+     * top-K and prefix sums).
+     */
+    void importAd(AdState state) {
+        if (!state.seen.isEmpty()) {
+            seenStore.computeIfAbsent(state.adUUID, k -> ConcurrentHashMap.newKeySet()).addAll(state.seen);
+        }
+        capTracker.importWindow(state.adUUID, state.capWindow);
+        topAds.addAd(state.adUUID, state.days);
+        if (state.days.isEmpty()) return;
+        ConcurrentSkipListMap<LocalDate, DailyCounter> history =
+                eventStore.computeIfAbsent(state.adUUID, k -> new ConcurrentSkipListMap<>());
+        for (Map.Entry<LocalDate, long[]> e : state.days.entrySet()) {
+            DailyCounter dc = history.computeIfAbsent(e.getKey(), d -> new DailyCounter());
+            dc.impressions.add(e.getValue()[0]);
+            dc.clicks.add(e.getValue()[1]);
+            aggregates.addCounts(state.adUUID, e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+    }
+
+    // ---------------- Metrics ----------------
+
+    public AdClickMetrics metrics() {
+        return metrics;
+    }
+
     // ---------------- Lifecycle ----------------
 
     /**
@@ -292,6 +508,7 @@ public class MultiThreadedAdClickSystem {
      */
     public void shutdown() {
         purgerScheduler.shutdownNow();
+        capTracker.shutdown();
     }
 
     // ---------------- Demo / Simple test harness ----------------
@@ -327,11 +544,16 @@ public class MultiThreadedAdClickSystem {
 
         boolean cappedA = svc.isAdCappedAtDate(adA, LocalDate.now());
         System.out.println("AdA capped at today? " + cappedA);
+        System.out.println("AdA capped now (O(1))? " + svc.isAdCappedNow(adA));
+        System.out.println("Top impressions today: " + svc.getTopAds(LocalDate.now(), 2, HeavyHitterTracker.Metric.IMPRESSIONS));
+        System.out.print("Last 3 days:\n" + svc.getAggregates(List.of(adA, adB), LocalDate.now().minusDays(2), LocalDate.now()));
 
         // Demonstrate purge (force a purge with a very old cutoff)
         LocalDate longCutoff = LocalDate.now().minusDays(RETENTION_DAYS + 1);
         svc.purgeOldData(longCutoff); // should not remove recent entries
 
+        System.out.println("Metrics: " + svc.metrics().snapshot());
+
         // Shutdown background purger
         svc.shutdown();
     }
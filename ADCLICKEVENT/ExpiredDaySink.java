@@ -0,0 +1,29 @@
+/*FOLLOW-UP: One contract for "a day left memory"
+
+Every store variant (skip list, ring buffer, shards, hourly rollup, durable WAL) drops days
+older than the retention window and must hand each one to persistence exactly as
+dumpExpiredDataToPersistentStore did: (ad, day, impressions, clicks), one call per ad-day.
+
+So the sink is its own type, not an inner interface of one store:
+  PRINT -> mock persistent store, prints the record (the default of the demos)
+  NONE  -> drops it (benchmarks, restore measurements)
+  SegmentLog -> the real one: queued, group-committed, fsynced segment files
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.util.UUID;
+
+/** Receives a day's totals once it leaves a store (purge or slot reuse): one call per ad-day. */
+public interface ExpiredDaySink {
+
+    /** Mock persistent store: prints the record like dumpExpiredDataToPersistentStore. */
+    ExpiredDaySink PRINT = (ad, date, imp, clk) -> System.out.println(
+            "[PERSIST] ad=" + ad + ", date=" + date + ", impressions=" + imp + ", clicks=" + clk);
+
+    /** Discards every record. */
+    ExpiredDaySink NONE = (ad, date, imp, clk) -> { };
+
+    void dump(UUID adUUID, LocalDate date, long impressions, long clicks);
+}
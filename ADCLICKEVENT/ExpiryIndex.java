@@ -0,0 +1,191 @@
+/*FOLLOW-UP: Watermark-driven incremental purge (timing wheel by epoch day)
+
+Today purgeOldData:
+  copy eventStore.keySet()           -> O(#ads) allocation every minute
+  lock every ad, look at its headMap -> O(#ads) even if nothing expired
+TTL.java even does this inside every consumeAdEvents call.
+
+Better: remember WHICH ads have data on WHICH day.
+
+expiryIndex: epochDay -> set of ads that got their first event for that day
+  (registered once per (ad, day), when DailyCounter is created)
+
+watermark = max event time seen - allowedLateness
+  (events later than that are too late anyway)
+
+advance(watermark):
+  cutoff = watermark.day - RETENTION_DAYS
+  for day in (lastPurgedDay, cutoff): pop index[day] -> purge only those ads/days
+  cost = O(expired (ad, day) pairs), not O(total ads)
+
+The wheel is a ConcurrentSkipListMap<Long, Set<UUID>> keyed by day: at most
+RETENTION_DAYS + lateness days are ever live, so pollFirstEntry() is the wheel tick.
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEvent;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+import ParkingSpot.MultiThreadedAdClickSystem.DailyCounter;
+import ParkingSpot.MultiThreadedAdClickSystem.SeenEvent;
+
+public class WatermarkPurgeAdClickSystem {
+
+    static final int RETENTION_DAYS = MultiThreadedAdClickSystem.RETENTION_DAYS;
+
+    /** Called for every (ad, day) that leaves retention. */
+    interface ExpiredDayHandler {
+        void onExpired(UUID adUUID, LocalDate date, DailyCounter dc);
+    }
+
+    // same stores as MultiThreadedAdClickSystem
+    private final ConcurrentHashMap<UUID, ConcurrentSkipListMap<LocalDate, DailyCounter>> eventStore = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Set<SeenEvent>> seenStore = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, ReentrantLock> adLocks = new ConcurrentHashMap<>();
+
+    // epochDay -> ads with a DailyCounter on that day
+    private final ConcurrentSkipListMap<Long, Set<UUID>> expiryIndex = new ConcurrentSkipListMap<>();
+
+    private final Duration allowedLateness;
+    private final ExpiredDayHandler handler;
+    private final AtomicReference<LocalDateTime> maxEventTime = new AtomicReference<>(LocalDateTime.MIN);
+    private volatile long purgedBeforeDay = Long.MIN_VALUE;     // every day < this is gone
+
+    public WatermarkPurgeAdClickSystem(Duration allowedLateness, ExpiredDayHandler handler) {
+        this.allowedLateness = allowedLateness;
+        this.handler = handler;
+    }
+
+    // ---------------- Ingestion ----------------
+
+    public void consumeAdEvents(final List<AdEvent> events) {
+        LocalDateTime batchMax = LocalDateTime.MIN;
+        for (AdEvent e : events) {
+            if (e.timestamp.isAfter(batchMax)) batchMax = e.timestamp;
+
+            LocalDate date = e.timestamp.toLocalDate();
+            if (date.toEpochDay() < purgedBeforeDay) continue;        // later than allowed lateness
+
+            Set<SeenEvent> seenSet = seenStore.computeIfAbsent(e.adUUID, k -> ConcurrentHashMap.newKeySet());
+            if (!seenSet.add(new SeenEvent(e.timestamp, e.type))) continue;
+
+            ConcurrentSkipListMap<LocalDate, DailyCounter> history =
+                    eventStore.computeIfAbsent(e.adUUID, k -> new ConcurrentSkipListMap<>());
+            DailyCounter dc = history.get(date);
+            if (dc == null) {
+                DailyCounter created = new DailyCounter();
+                dc = history.putIfAbsent(date, created);
+                if (dc == null) {
+                    dc = created;
+                    // first event of (ad, day): register it on the wheel exactly once
+                    expiryIndex.computeIfAbsent(date.toEpochDay(), d -> ConcurrentHashMap.newKeySet()).add(e.adUUID);
+                }
+            }
+            if (e.type == AdEventType.IMPRESSION) dc.impressions.increment();
+            else dc.clicks.increment();
+        }
+        final LocalDateTime observed = batchMax;
+        maxEventTime.accumulateAndGet(observed, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    // ---------------- Watermark / purge ----------------
+
+    public LocalDateTime watermark() {
+        LocalDateTime max = maxEventTime.get();
+        return max.equals(LocalDateTime.MIN) ? max : max.minus(allowedLateness);
+    }
+
+    /** Purge by the event-time watermark; call from the scheduler (or after each batch, it is cheap now). */
+    public int advanceWatermark() {
+        LocalDateTime wm = watermark();
+        if (wm.equals(LocalDateTime.MIN)) return 0;
+        return purgeBefore(wm.toLocalDate().minusDays(RETENTION_DAYS));
+    }
+
+    /**
+     * Remove every (ad, day) with day < cutoffDateExclusive.
+     * Only ads registered on the expiring wheel slots are touched.
+     *
+     * @return number of (ad, day) pairs purged.
+     */
+    public int purgeBefore(LocalDate cutoffDateExclusive) {
+        long cutoff = cutoffDateExclusive.toEpochDay();
+        if (cutoff > purgedBeforeDay) purgedBeforeDay = cutoff;      // reject new events for these days first
+
+        int purged = 0;
+        Map.Entry<Long, Set<UUID>> slot;
+        while ((slot = pollExpiredSlot(cutoff)) != null) {
+            LocalDate day = LocalDate.ofEpochDay(slot.getKey());
+            for (UUID ad : slot.getValue()) {
+                if (purgeDay(ad, day)) purged++;
+            }
+        }
+        return purged;
+    }
+
+    private Map.Entry<Long, Set<UUID>> pollExpiredSlot(long cutoff) {
+        Map.Entry<Long, Set<UUID>> first = expiryIndex.firstEntry();
+        if (first == null || first.getKey() >= cutoff) return null;
+        return expiryIndex.remove(first.getKey(), first.getValue()) ? first : pollExpiredSlot(cutoff);
+    }
+
+    private boolean purgeDay(UUID ad, LocalDate day) {
+        ReentrantLock lock = adLocks.computeIfAbsent(ad, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            ConcurrentSkipListMap<LocalDate, DailyCounter> history = eventStore.get(ad);
+            if (history == null) return false;
+            DailyCounter dc = history.remove(day);
+            if (dc != null) handler.onExpired(ad, day, dc);
+
+            if (history.isEmpty()) {
+                eventStore.remove(ad);
+                seenStore.remove(ad);
+                adLocks.remove(ad);
+            }
+            return dc != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Pending (ad, day) registrations per day; its size is what the next purges will cost. */
+    public NavigableMap<LocalDate, Integer> pendingExpiries() {
+        NavigableMap<LocalDate, Integer> view = new TreeMap<>();
+        for (Map.Entry<Long, Set<UUID>> e : expiryIndex.entrySet()) {
+            view.put(LocalDate.ofEpochDay(e.getKey()), e.getValue().size());
+        }
+        return view;
+    }
+
+    public boolean hasData(UUID adUUID) {
+        return eventStore.containsKey(adUUID);
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) {
+        WatermarkPurgeAdClickSystem svc = new WatermarkPurgeAdClickSystem(Duration.ofHours(6),
+                (ad, date, dc) -> System.out.println("[PERSIST] ad=" + ad + ", date=" + date + ", " + dc));
+
+        UUID oldAd = UUID.randomUUID();
+        UUID freshAd = UUID.randomUUID();
+        LocalDateTime now = LocalDateTime.now();
+
+        svc.consumeAdEvents(Arrays.asList(
+                new AdEvent(oldAd, now.minusDays(RETENTION_DAYS + 2), AdEventType.IMPRESSION),
+                new AdEvent(freshAd, now.minusDays(1), AdEventType.IMPRESSION)));
+        System.out.println("pending: " + svc.pendingExpiries());
+
+        svc.consumeAdEvents(Collections.singletonList(new AdEvent(freshAd, now, AdEventType.CLICK)));
+        System.out.println("purged pairs: " + svc.advanceWatermark());          // only oldAd is touched
+        System.out.println("oldAd kept? " + svc.hasData(oldAd) + ", freshAd kept? " + svc.hasData(freshAd));
+    }
+}
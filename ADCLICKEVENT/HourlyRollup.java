@@ -0,0 +1,272 @@
+/*FOLLOW-UP: Hour buckets for recent days, rolled up into day buckets
+
+Pacing wants "impressions in the last 6 hours", DailyCounter only knows days.
+Keeping hour buckets forever = 24x the memory for 30 days x all ads. So:
+
+Rollup policy: keep hour detail for the most recent HOURLY_DAYS days only.
+
+per ad
+  days  : ConcurrentSkipListMap<LocalDate, DailyCounter>   (as before, 30 days)
+  hours : AtomicLongArray ring of HOURLY_DAYS * 24 slots * 2 metrics
+          slot = epochHour % ring size, each long packs (epochHour tag, count)
+          -> same trick as RingBufferCounters: a slot reused by a newer hour
+             simply overwrites the old hour = automatic downsampling
+
+Rollup is eager: an event bumps its hour slot AND its day counter, so a day
+bucket is always the sum of its hours and nothing has to be merged later.
+Memory per ad = fixed ring + day buckets, independent of how many hours pass.
+
+Reads pick the coarsest granularity that answers the query:
+  getDailyAdEventHistory / isAdCappedAtDate  -> day buckets only
+  countInRange(from, to)                      -> whole days from day buckets,
+                                                 only the ragged edges from hours
+  edges older than the hour ring              -> IllegalArgumentException (detail is gone)
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEvent;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventBucket;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+import ParkingSpot.MultiThreadedAdClickSystem.DailyCounter;
+import ParkingSpot.MultiThreadedAdClickSystem.SeenEvent;
+
+public class HourlyRollupAdClickSystem {
+
+    static final int ROLLING_WINDOW_LENGTH_DAYS = MultiThreadedAdClickSystem.ROLLING_WINDOW_LENGTH_DAYS;
+    static final int IMPRESSION_LIMIT = MultiThreadedAdClickSystem.IMPRESSION_LIMIT;
+
+    private final int hourSlots;                 // hourlyDays * 24
+
+    private final ConcurrentHashMap<UUID, ConcurrentSkipListMap<LocalDate, DailyCounter>> eventStore = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, AtomicLongArray> hourStore = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Set<SeenEvent>> seenStore = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, ReentrantLock> adLocks = new ConcurrentHashMap<>();
+
+    /** Where purged day buckets go, called after the ad lock is released. */
+    private final ExpiredDaySink expiredDaySink;
+
+    /** @param hourlyDays how many recent days keep hour detail (rollup policy). */
+    public HourlyRollupAdClickSystem(int hourlyDays) {
+        this(hourlyDays, ExpiredDaySink.PRINT);
+    }
+
+    public HourlyRollupAdClickSystem(int hourlyDays, ExpiredDaySink expiredDaySink) {
+        if (hourlyDays <= 0) throw new IllegalArgumentException("hourlyDays must be > 0");
+        this.hourSlots = hourlyDays * 24;
+        this.expiredDaySink = expiredDaySink;
+    }
+
+    static final class Counts {
+        final long impressions;
+        final long clicks;
+
+        Counts(long impressions, long clicks) {
+            this.impressions = impressions;
+            this.clicks = clicks;
+        }
+
+        @Override
+        public String toString() {
+            return "impressions=" + impressions + ", clicks=" + clicks;
+        }
+    }
+
+    // ---------------- Ingestion ----------------
+
+    public void consumeAdEvents(final List<AdEvent> events) {
+        for (AdEvent e : events) {
+            Set<SeenEvent> seenSet = seenStore.computeIfAbsent(e.adUUID, k -> ConcurrentHashMap.newKeySet());
+            if (!seenSet.add(new SeenEvent(e.timestamp, e.type))) continue;
+
+            // day bucket (coarse, 30 days)
+            DailyCounter dc = eventStore.computeIfAbsent(e.adUUID, k -> new ConcurrentSkipListMap<>())
+                    .computeIfAbsent(e.timestamp.toLocalDate(), d -> new DailyCounter());
+            if (e.type == AdEventType.IMPRESSION) dc.impressions.increment();
+            else dc.clicks.increment();
+
+            // hour bucket (fine, recent days only)
+            AtomicLongArray hours = hourStore.computeIfAbsent(e.adUUID, k -> new AtomicLongArray(2 * hourSlots));
+            addHour(hours, epochHour(e.timestamp), e.type == AdEventType.IMPRESSION ? 0 : hourSlots);
+        }
+    }
+
+    private void addHour(AtomicLongArray hours, long epochHour, int offset) {
+        int idx = slotOf(epochHour) + offset;
+        while (true) {
+            long cur = hours.get(idx);
+            long curHour = RingBufferAdClickSystem.dayOf(cur);      // same (tag, count) packing
+            if (cur != 0 && curHour > epochHour) return;            // older than the ring: day bucket has it
+            long next = cur != 0 && curHour == epochHour ? cur + 1 : RingBufferAdClickSystem.pack(epochHour, 1);
+            if (hours.compareAndSet(idx, cur, next)) return;
+        }
+    }
+
+    // ---------------- Day-granularity reads ----------------
+
+    public List<AdEventBucket> getDailyAdEventHistory(final UUID adUUID) {
+        List<AdEventBucket> result = new ArrayList<>();
+        for (Map.Entry<LocalDate, DailyCounter> e : history(adUUID).entrySet()) {
+            DailyCounter dc = e.getValue();
+            result.add(new AdEventBucket(e.getKey(), (int) dc.impressions.sum(), (int) dc.clicks.sum()));
+        }
+        return result;
+    }
+
+    public boolean isAdCappedAtDate(final UUID adUUID, final LocalDate date) {
+        LocalDate start = date.minusDays(ROLLING_WINDOW_LENGTH_DAYS - 1);
+        Counts c = sumDays(history(adUUID), start, date.plusDays(1));
+        return c.impressions >= IMPRESSION_LIMIT && c.clicks == 0;
+    }
+
+    // ---------------- Hour-granularity reads ----------------
+
+    /** Events in [from, to), both truncated to the hour. Whole days come from day buckets. */
+    public Counts countInRange(final UUID adUUID, LocalDateTime from, LocalDateTime to) {
+        ConcurrentSkipListMap<LocalDate, DailyCounter> days = history(adUUID);
+        long fromHour = epochHour(from);
+        long toHour = epochHour(to);
+        if (toHour <= fromHour) return new Counts(0, 0);
+
+        LocalDate firstWholeDay = from.truncatedTo(ChronoUnit.HOURS).getHour() == 0
+                ? from.toLocalDate() : from.toLocalDate().plusDays(1);
+        LocalDate endWholeDay = to.toLocalDate();                       // exclusive
+        if (!firstWholeDay.isBefore(endWholeDay)) {                     // no whole day inside
+            return sumHours(adUUID, fromHour, toHour);
+        }
+
+        Counts whole = sumDays(days, firstWholeDay, endWholeDay);
+        Counts head = sumHours(adUUID, fromHour, firstWholeDay.toEpochDay() * 24);
+        Counts tail = sumHours(adUUID, endWholeDay.toEpochDay() * 24, toHour);
+        return new Counts(whole.impressions + head.impressions + tail.impressions,
+                whole.clicks + head.clicks + tail.clicks);
+    }
+
+    /** Hour-level pacing check: X impressions and no clicks in the last `hours` hours before now. */
+    public boolean isAdCappedInLastHours(final UUID adUUID, LocalDateTime now, int hours) {
+        LocalDateTime end = now.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+        Counts c = countInRange(adUUID, end.minusHours(hours), end);
+        return c.impressions >= IMPRESSION_LIMIT && c.clicks == 0;
+    }
+
+    // ---------------- Purge ----------------
+
+    /**
+     * Day buckets expire as before (per-ad lock, dump every expired day, dump outside the lock);
+     * hour detail already rotates by itself.
+     */
+    public void purgeOldData(LocalDate cutoffDateExclusive) {
+        for (UUID ad : new ArrayList<>(eventStore.keySet())) {
+            Map<LocalDate, DailyCounter> removed = new TreeMap<>();
+            ReentrantLock lock = adLocks.computeIfAbsent(ad, k -> new ReentrantLock());
+            lock.lock();
+            try {
+                ConcurrentSkipListMap<LocalDate, DailyCounter> history = eventStore.get(ad);
+                if (history == null) continue;
+                for (LocalDate day : new ArrayList<>(history.headMap(cutoffDateExclusive, false).keySet())) {
+                    DailyCounter dc = history.remove(day);
+                    if (dc != null) removed.put(day, dc);
+                }
+                if (history.isEmpty()) {
+                    eventStore.remove(ad);
+                    hourStore.remove(ad);
+                    seenStore.remove(ad);
+                    adLocks.remove(ad);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (Map.Entry<LocalDate, DailyCounter> e : removed.entrySet()) {
+                DailyCounter dc = e.getValue();
+                expiredDaySink.dump(ad, e.getKey(), dc.impressions.sum(), dc.clicks.sum());
+            }
+        }
+    }
+
+    // ---------------- Helpers ----------------
+
+    private ConcurrentSkipListMap<LocalDate, DailyCounter> history(UUID adUUID) {
+        ConcurrentSkipListMap<LocalDate, DailyCounter> history = eventStore.get(adUUID);
+        if (history == null) {
+            throw new IllegalArgumentException("No data for adUUID: " + adUUID);
+        }
+        return history;
+    }
+
+    private static Counts sumDays(ConcurrentSkipListMap<LocalDate, DailyCounter> days, LocalDate from, LocalDate toExclusive) {
+        long impressions = 0, clicks = 0;
+        for (DailyCounter dc : days.subMap(from, true, toExclusive, false).values()) {
+            impressions += dc.impressions.sum();
+            clicks += dc.clicks.sum();
+        }
+        return new Counts(impressions, clicks);
+    }
+
+    private Counts sumHours(UUID adUUID, long fromHour, long toHourExclusive) {
+        if (fromHour >= toHourExclusive) return new Counts(0, 0);
+        AtomicLongArray hours = hourStore.get(adUUID);
+        long newest = 0;
+        for (int i = 0; hours != null && i < hours.length(); i++) {
+            newest = Math.max(newest, RingBufferAdClickSystem.dayOf(hours.get(i)));
+        }
+        if (fromHour <= Math.max(newest, toHourExclusive - 1) - hourSlots) {
+            throw new IllegalArgumentException("Hour detail before " + hourSlots / 24
+                    + " days is rolled up; query whole days instead");
+        }
+        long impressions = 0, clicks = 0;
+        for (long h = fromHour; h < toHourExclusive && hours != null; h++) {
+            impressions += hourCount(hours, h, 0);
+            clicks += hourCount(hours, h, hourSlots);
+        }
+        return new Counts(impressions, clicks);
+    }
+
+    private long hourCount(AtomicLongArray hours, long epochHour, int offset) {
+        long v = hours.get(slotOf(epochHour) + offset);
+        return v != 0 && RingBufferAdClickSystem.dayOf(v) == epochHour ? RingBufferAdClickSystem.countOf(v) : 0;
+    }
+
+    private int slotOf(long epochHour) {
+        return (int) Math.floorMod(epochHour, (long) hourSlots);
+    }
+
+    static long epochHour(LocalDateTime t) {
+        return t.toEpochSecond(ZoneOffset.UTC) / 3600;
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) {
+        HourlyRollupAdClickSystem svc = new HourlyRollupAdClickSystem(2);
+        UUID ad = UUID.randomUUID();
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).plusMinutes(30);
+
+        List<AdEvent> batch = new ArrayList<>();
+        for (int h = 0; h < 72; h++) batch.add(new AdEvent(ad, now.minusHours(h), AdEventType.IMPRESSION));
+        svc.consumeAdEvents(batch);
+
+        System.out.println("History: " + svc.getDailyAdEventHistory(ad));
+        System.out.println("Last 6h: " + svc.countInRange(ad, now.minusHours(5).withMinute(0), now.plusHours(1).withMinute(0)));
+        System.out.println("Capped in last 6h? " + svc.isAdCappedInLastHours(ad, now, 6));
+        System.out.println("Yesterday 00:00 -> now: "
+                + svc.countInRange(ad, now.toLocalDate().minusDays(1).atStartOfDay(), now.plusHours(1).withMinute(0)));
+        try {
+            svc.countInRange(ad, now.minusHours(60), now);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("60h ago at hour detail: " + ex.getMessage());
+        }
+
+        svc.consumeAdEvents(List.of(new AdEvent(ad, now.minusDays(40), AdEventType.CLICK)));
+        svc.purgeOldData(now.toLocalDate().minusDays(MultiThreadedAdClickSystem.RETENTION_DAYS));  // dumps the 40-day-old click
+    }
+}
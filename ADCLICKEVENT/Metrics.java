@@ -0,0 +1,264 @@
+/*FOLLOW-UP: Instrumentation for MultiThreadedAdClickSystem
+
+"How is it doing?" needs: ingest latency distribution, dedupe hit ratio,
+purge duration, how long purge waits on adLocks, and store sizes.
+
+Recording must be ~free on the hot path:
+- counters   -> LongAdder (striped, no CAS fight between ingest threads)
+- latencies  -> log-linear histogram (HDR style): 32 sub-buckets per power of two
+                index = few shifts on the value, bump one AtomicLongArray cell
+                relative error <= 1/32 (~3%), range 1ns .. 2^62ns, fixed 1888 cells
+- gauges     -> LongSupplier read only when someone pulls
+
+No allocation when recording; allocation happens only in snapshot().
+
+Export:
+- pull:  metrics.snapshot() -> immutable Snapshot with p50/p99/p99.9/max
+- JMX:   registerMBean() -> ParkingSpot:type=AdClickMetrics,name=<name>
+         (jconsole / any JMX scraper, e.g. Prometheus jmx_exporter)
+
+Per event we only bump a local int; counters get one LongAdder.add() per BATCH,
+nanoTime() is taken per batch (ingest) and per ad only when the lock is contended
+(tryLock first). So the per-event share is well under 20ns.
+
+So ingestBatch is the latency of one consumeAdEvents CALL (the whole batch), not of one
+event: its percentiles depend on the callers' batch sizes; divide by batch size for a
+per-event cost. Timing each event would take two nanoTime() calls per event and break the budget.
+
+Java Code*/
+package ParkingSpot;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+public class AdClickMetrics {
+
+    public interface AdClickMetricsMXBean {
+        long getEventsIngested();
+
+        long getDuplicatesDropped();
+
+        double getDedupeHitRatio();
+
+        long getIngestBatchP50Nanos();
+
+        long getIngestBatchP99Nanos();
+
+        long getIngestBatchP999Nanos();
+
+        long getPurgeP99Nanos();
+
+        long getPurgeCount();
+
+        long getLockWaitP99Nanos();
+
+        long getLockWaitCount();
+
+        Map<String, Long> getGauges();
+    }
+
+    // ---------------- Metrics ----------------
+
+    final LongAdder eventsIngested = new LongAdder();
+    final LongAdder duplicatesDropped = new LongAdder();
+    final LatencyHistogram ingestBatchNanos = new LatencyHistogram();
+    final LatencyHistogram purgeNanos = new LatencyHistogram();
+    final LatencyHistogram lockWaitNanos = new LatencyHistogram();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /** Exposes this registry over the platform MBean server. */
+    public void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(new MXBeanAdapter(this), new ObjectName("ParkingSpot:type=AdClickMetrics,name=" + name));
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot register metrics MBean " + name, e);
+        }
+    }
+
+    // ---------------- Pull API ----------------
+
+    static final class Snapshot {
+        final long eventsIngested;
+        final long duplicatesDropped;
+        final LatencyHistogram.Summary ingestBatch;
+        final LatencyHistogram.Summary purge;
+        final LatencyHistogram.Summary lockWait;
+        final Map<String, Long> gauges;
+
+        Snapshot(AdClickMetrics m) {
+            this.eventsIngested = m.eventsIngested.sum();
+            this.duplicatesDropped = m.duplicatesDropped.sum();
+            this.ingestBatch = m.ingestBatchNanos.summary();
+            this.purge = m.purgeNanos.summary();
+            this.lockWait = m.lockWaitNanos.summary();
+            this.gauges = m.getGauges();
+        }
+
+        double dedupeHitRatio() {
+            long total = eventsIngested + duplicatesDropped;
+            return total == 0 ? 0 : (double) duplicatesDropped / total;
+        }
+
+        @Override
+        public String toString() {
+            return "events=" + eventsIngested + ", duplicates=" + duplicatesDropped
+                    + String.format(", dedupeHitRatio=%.3f", dedupeHitRatio())
+                    + "\n  ingestBatch " + ingestBatch
+                    + "\n  purge       " + purge
+                    + "\n  lockWait    " + lockWait
+                    + "\n  gauges      " + gauges;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) values.put(g.getKey(), g.getValue().getAsLong());
+        return values;
+    }
+
+    // ---------------- MXBean ----------------
+
+    private static final class MXBeanAdapter implements AdClickMetricsMXBean {
+        private final AdClickMetrics m;
+
+        MXBeanAdapter(AdClickMetrics m) {
+            this.m = m;
+        }
+
+        @Override public long getEventsIngested() { return m.eventsIngested.sum(); }
+
+        @Override public long getDuplicatesDropped() { return m.duplicatesDropped.sum(); }
+
+        @Override public double getDedupeHitRatio() { return m.snapshot().dedupeHitRatio(); }
+
+        @Override public long getIngestBatchP50Nanos() { return m.ingestBatchNanos.percentile(50); }
+
+        @Override public long getIngestBatchP99Nanos() { return m.ingestBatchNanos.percentile(99); }
+
+        @Override public long getIngestBatchP999Nanos() { return m.ingestBatchNanos.percentile(99.9); }
+
+        @Override public long getPurgeP99Nanos() { return m.purgeNanos.percentile(99); }
+
+        @Override public long getPurgeCount() { return m.purgeNanos.count(); }
+
+        @Override public long getLockWaitP99Nanos() { return m.lockWaitNanos.percentile(99); }
+
+        @Override public long getLockWaitCount() { return m.lockWaitNanos.count(); }
+
+        @Override public Map<String, Long> getGauges() { return m.getGauges(); }
+    }
+
+    // ---------------- Histogram ----------------
+
+    /** Log-linear buckets: exact below 32, then 32 sub-buckets per power of two. */
+    static final class LatencyHistogram {
+        static final int SUB_BITS = 5;
+        static final int SUB = 1 << SUB_BITS;
+        static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            counts.incrementAndGet(indexOf(Math.max(0, value)));
+        }
+
+        static int indexOf(long v) {
+            if (v < SUB) return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB + (int) ((v >>> shift) - SUB);
+        }
+
+        /** Smallest value that lands in bucket idx. */
+        static long lowerBound(int idx) {
+            if (idx < SUB) return idx;
+            int shift = idx / SUB - 1;
+            return ((long) (idx % SUB) + SUB) << shift;
+        }
+
+        long count() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+            return n;
+        }
+
+        long percentile(double p) {
+            long n = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) n += snapshot[i] = counts.get(i);
+            return percentileOf(snapshot, n, p);
+        }
+
+        private static long percentileOf(long[] snapshot, long n, double p) {
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(p / 100.0 * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(1, rank)) return lowerBound(i);
+            }
+            return lowerBound(BUCKETS - 1);
+        }
+
+        static final class Summary {
+            final long count, p50, p99, p999, max;
+
+            Summary(long count, long p50, long p99, long p999, long max) {
+                this.count = count;
+                this.p50 = p50;
+                this.p99 = p99;
+                this.p999 = p999;
+                this.max = max;
+            }
+
+            @Override
+            public String toString() {
+                return "count=" + count + " p50=" + p50 + "ns p99=" + p99 + "ns p99.9=" + p999 + "ns max~" + max + "ns";
+            }
+        }
+
+        Summary summary() {
+            long[] snapshot = new long[BUCKETS];
+            long n = 0;
+            int last = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                n += snapshot[i] = counts.get(i);
+                if (snapshot[i] != 0) last = i;
+            }
+            return new Summary(n, percentileOf(snapshot, n, 50), percentileOf(snapshot, n, 99),
+                    percentileOf(snapshot, n, 99.9), n == 0 ? 0 : lowerBound(last));
+        }
+    }
+
+    // ---------------- Demo: recording cost ----------------
+    public static void main(String[] args) {
+        AdClickMetrics m = new AdClickMetrics();
+        int n = 50_000_000;
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) m.eventsIngested.increment();
+            long t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) m.ingestBatchNanos.record(i & 0xFFFF);
+            long t2 = System.nanoTime();
+            System.out.printf("per-event counter: %.1f ns, histogram record: %.1f ns%n",
+                    (t1 - t0) / (double) n, (t2 - t1) / (double) n);
+        }
+        m.gauge("ads", () -> 42);
+        m.registerMBean("demo");
+        System.out.println(m.snapshot());
+    }
+}
@@ -0,0 +1,328 @@
+/*FOLLOW-UP: Partitioned cluster of MultiThreadedAdClickSystem nodes + rebalancing
+
+K in-process nodes, each a MultiThreadedAdClickSystem. Every ad lives on exactly
+one node, chosen by a consistent-hash ring:
+
+  ring     : TreeMap<hash, node>, VNODES virtual points per node
+  owner(ad): first point clockwise of mix64(adUUID)
+  add/remove a node -> only ~1/K of the ads change owner
+
+Live handoff (traffic keeps flowing):
+
+  writes/reads go through a striped ReentrantReadWriteLock (stripe = hash(ad))
+    normal      : read lock, route by ring
+    migrating   : write lock for the stripe (exclusive for those ads)
+
+  1) start  : take all stripe write locks (waits only for in-flight batches),
+              install Migration(oldRing, newRing), release                 -> short pause, no scan
+  2) during : ad whose owner does not change -> as usual
+              ad whose owner changes         -> if old node still has it, move it NOW
+                                                (exportAd/importAd), then use the new node
+              the sweep moves everything else, one ad per stripe lock; it runs on the
+              thread calling addNode/removeNode (under membershipLock), so that call
+              blocks until the move is done while ingestion and reads keep going
+  3) finish : take all stripe write locks, ring = newRing, migration = null
+
+Why it is correct:
+- an ad is moved under its stripe write lock -> no ingestion/read for it in between
+- after step 1 no write for a moving ad ever lands on the old node, so the sweep's
+  (weakly consistent) walk over the old node's ads cannot miss one
+- dedupe set moves together with the counters -> a replayed event is still dropped
+
+Load generator (main): producers push batches, each batch latency goes to a
+LatencyHistogram; phases steady / add node / remove node print throughput + p50/p99/max.
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEvent;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventBucket;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+import ParkingSpot.MultiThreadedAdClickSystem.AdState;
+
+public class PartitionedAdClickCluster {
+
+    static final int VNODES = 128;
+    static final int STRIPES = 256;
+
+    private final Map<String, MultiThreadedAdClickSystem> nodes = new LinkedHashMap<>();
+    private final ReentrantReadWriteLock[] stripeLocks = new ReentrantReadWriteLock[STRIPES];
+    private final Object membershipLock = new Object();        // one add/remove at a time
+
+    private volatile TreeMap<Long, String> ring = new TreeMap<>();
+    private volatile Migration migration;                       // != null while rebalancing
+
+    final AtomicLong adsMoved = new AtomicLong();
+
+    private static final class Migration {
+        final TreeMap<Long, String> oldRing;
+        final TreeMap<Long, String> newRing;
+
+        Migration(TreeMap<Long, String> oldRing, TreeMap<Long, String> newRing) {
+            this.oldRing = oldRing;
+            this.newRing = newRing;
+        }
+    }
+
+    public PartitionedAdClickCluster(Collection<String> nodeIds) {
+        for (int i = 0; i < STRIPES; i++) stripeLocks[i] = new ReentrantReadWriteLock();
+        TreeMap<Long, String> r = new TreeMap<>();
+        for (String id : nodeIds) {
+            nodes.put(id, new MultiThreadedAdClickSystem());
+            addPoints(r, id);
+        }
+        ring = r;
+    }
+
+    // ---------------- Routing ----------------
+
+    static long hashOf(UUID adUUID) {
+        return BoundedDedupeStore.mix64(adUUID.getMostSignificantBits() ^ Long.rotateLeft(adUUID.getLeastSignificantBits(), 32));
+    }
+
+    private static void addPoints(TreeMap<Long, String> r, String nodeId) {
+        for (int v = 0; v < VNODES; v++) {
+            r.put(BoundedDedupeStore.mix64(nodeId.hashCode() * 0x9E3779B97F4A7C15L + v), nodeId);
+        }
+    }
+
+    private static String ownerIn(TreeMap<Long, String> r, long hash) {
+        Map.Entry<Long, String> e = r.ceilingEntry(hash);
+        return e != null ? e.getValue() : r.firstEntry().getValue();
+    }
+
+    private int stripeOf(long hash) {
+        return (int) (hash >>> 56) & (STRIPES - 1);
+    }
+
+    /**
+     * Current owner of an ad. Caller holds the ad's stripe lock (write lock if a migration is running),
+     * so a pending move for this ad happens here, before the caller touches the node.
+     */
+    private MultiThreadedAdClickSystem ownerNode(UUID adUUID, long hash, Migration m) {
+        if (m == null) return nodes.get(ownerIn(ring, hash));
+        String from = ownerIn(m.oldRing, hash);
+        String to = ownerIn(m.newRing, hash);
+        if (!from.equals(to)) moveIfPresent(adUUID, nodes.get(from), nodes.get(to));
+        return nodes.get(to);
+    }
+
+    private void moveIfPresent(UUID adUUID, MultiThreadedAdClickSystem from, MultiThreadedAdClickSystem to) {
+        if (!from.hasAd(adUUID)) return;
+        AdState state = from.exportAd(adUUID);
+        to.importAd(state);
+        adsMoved.incrementAndGet();
+    }
+
+    // ---------------- Public API ----------------
+
+    public void consumeAdEvents(final List<AdEvent> events) {
+        // group by stripe so each stripe lock is taken once per batch
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<AdEvent>[] byStripe = new List[STRIPES];
+        for (AdEvent e : events) {
+            int s = stripeOf(hashOf(e.adUUID));
+            if (byStripe[s] == null) byStripe[s] = new ArrayList<>();
+            byStripe[s].add(e);
+        }
+
+        for (int s = 0; s < STRIPES; s++) {
+            if (byStripe[s] == null) continue;
+            Lock lock = lockStripe(s);
+            try {
+                Migration m = migration;        // stable while we hold a stripe lock
+                Map<MultiThreadedAdClickSystem, List<AdEvent>> perNode = new IdentityHashMap<>();
+                for (AdEvent e : byStripe[s]) {
+                    perNode.computeIfAbsent(ownerNode(e.adUUID, hashOf(e.adUUID), m), k -> new ArrayList<>()).add(e);
+                }
+                for (Map.Entry<MultiThreadedAdClickSystem, List<AdEvent>> e : perNode.entrySet()) {
+                    e.getKey().consumeAdEvents(e.getValue());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public List<AdEventBucket> getDailyAdEventHistory(final UUID adUUID) {
+        long hash = hashOf(adUUID);
+        Lock lock = lockStripe(stripeOf(hash));
+        try {
+            return ownerNode(adUUID, hash, migration).getDailyAdEventHistory(adUUID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isAdCappedAtDate(final UUID adUUID, final LocalDate date) {
+        long hash = hashOf(adUUID);
+        Lock lock = lockStripe(stripeOf(hash));
+        try {
+            return ownerNode(adUUID, hash, migration).isAdCappedAtDate(adUUID, date);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read lock normally, write lock while migrating. The migration flag only flips under all
+     * write locks, so if it changed between our check and the acquire we simply retry.
+     */
+    private Lock lockStripe(int s) {
+        while (true) {
+            boolean exclusive = migration != null;
+            Lock lock = exclusive ? stripeLocks[s].writeLock() : stripeLocks[s].readLock();
+            lock.lock();
+            if ((migration != null) == exclusive) return lock;
+            lock.unlock();
+        }
+    }
+
+    public Set<String> nodeIds() {
+        synchronized (membershipLock) {
+            return new LinkedHashSet<>(nodes.keySet());
+        }
+    }
+
+    // ---------------- Membership ----------------
+
+    public void addNode(String nodeId) {
+        synchronized (membershipLock) {
+            if (nodes.containsKey(nodeId)) throw new IllegalArgumentException("node exists: " + nodeId);
+            TreeMap<Long, String> next = new TreeMap<>(ring);
+            addPoints(next, nodeId);
+            runAllStripesExclusive(() -> nodes.put(nodeId, new MultiThreadedAdClickSystem()));
+            rebalance(next);
+        }
+    }
+
+    public void removeNode(String nodeId) {
+        synchronized (membershipLock) {
+            if (!nodes.containsKey(nodeId)) throw new IllegalArgumentException("unknown node: " + nodeId);
+            if (nodes.size() == 1) throw new IllegalStateException("cannot remove the last node");
+            TreeMap<Long, String> next = new TreeMap<>(ring);
+            next.values().removeIf(nodeId::equals);
+            rebalance(next);
+            MultiThreadedAdClickSystem gone = nodes.get(nodeId);
+            runAllStripesExclusive(() -> nodes.remove(nodeId));
+            gone.shutdown();
+        }
+    }
+
+    private void rebalance(TreeMap<Long, String> next) {
+        Migration m = new Migration(ring, next);
+        runAllStripesExclusive(() -> migration = m);
+
+        // sweep (on this thread): everything the old owners still hold for moving ads
+        for (Map.Entry<String, MultiThreadedAdClickSystem> node : new ArrayList<>(nodes.entrySet())) {
+            for (UUID ad : node.getValue().adIds()) {
+                long hash = hashOf(ad);
+                if (!ownerIn(m.oldRing, hash).equals(node.getKey())) continue;
+                String to = ownerIn(m.newRing, hash);
+                if (to.equals(node.getKey())) continue;
+                ReentrantReadWriteLock.WriteLock lock = stripeLocks[stripeOf(hash)].writeLock();
+                lock.lock();
+                try {
+                    moveIfPresent(ad, node.getValue(), nodes.get(to));
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        runAllStripesExclusive(() -> {
+            ring = next;
+            migration = null;
+        });
+    }
+
+    private void runAllStripesExclusive(Runnable action) {
+        for (ReentrantReadWriteLock l : stripeLocks) l.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            for (ReentrantReadWriteLock l : stripeLocks) l.writeLock().unlock();
+        }
+    }
+
+    public void shutdown() {
+        synchronized (membershipLock) {
+            for (MultiThreadedAdClickSystem n : nodes.values()) n.shutdown();
+        }
+    }
+
+    // ---------------- Load generator ----------------
+    public static void main(String[] args) throws Exception {
+        int producers = 4;
+        int batchSize = 200;
+        int adCount = 20_000;
+        PartitionedAdClickCluster cluster = new PartitionedAdClickCluster(List.of("node-0", "node-1", "node-2"));
+        UUID[] ads = new UUID[adCount];
+        for (int i = 0; i < adCount; i++) ads[i] = UUID.randomUUID();
+        LocalDateTime base = LocalDateTime.now().withNano(0);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong events = new AtomicLong();
+        AtomicLong seq = new AtomicLong();
+        AdClickMetrics.LatencyHistogram[] phaseLatency = new AdClickMetrics.LatencyHistogram[1];
+        phaseLatency[0] = new AdClickMetrics.LatencyHistogram();
+
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            pool.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (running.get()) {
+                    List<AdEvent> batch = new ArrayList<>(batchSize);
+                    for (int i = 0; i < batchSize; i++) {
+                        UUID ad = ads[rnd.nextInt(adCount)];
+                        long n = seq.incrementAndGet();
+                        batch.add(new AdEvent(ad, base.plusNanos(n % 86_400_000_000_000L),
+                                n % 40 == 0 ? AdEventType.CLICK : AdEventType.IMPRESSION));
+                    }
+                    long t0 = System.nanoTime();
+                    cluster.consumeAdEvents(batch);
+                    phaseLatency[0].record(System.nanoTime() - t0);
+                    events.addAndGet(batchSize);
+                }
+                return null;
+            });
+        }
+
+        runPhase("steady (3 nodes)", 1_000, events, phaseLatency, null);
+        runPhase("add node-3", 0, events, phaseLatency, () -> cluster.addNode("node-3"));
+        runPhase("steady (4 nodes)", 1_000, events, phaseLatency, null);
+        runPhase("remove node-1", 0, events, phaseLatency, () -> cluster.removeNode("node-1"));
+        runPhase("steady (3 nodes)", 1_000, events, phaseLatency, null);
+
+        running.set(false);
+        pool.shutdown();
+        pool.awaitTermination(5, TimeUnit.SECONDS);
+        System.out.println("ads moved: " + cluster.adsMoved.get() + ", nodes: " + cluster.nodeIds());
+        cluster.shutdown();
+    }
+
+    private static void runPhase(String name, long sleepMillis, AtomicLong events,
+                                 AdClickMetrics.LatencyHistogram[] latency, Runnable action) throws InterruptedException {
+        latency[0] = new AdClickMetrics.LatencyHistogram();
+        long e0 = events.get();
+        long t0 = System.nanoTime();
+        if (action != null) action.run();
+        if (sleepMillis > 0) Thread.sleep(sleepMillis);
+        long ns = System.nanoTime() - t0;
+        AdClickMetrics.LatencyHistogram.Summary s = latency[0].summary();
+        System.out.printf("%-18s %6d ms  %,10.0f events/s  batch p50=%dus p99=%dus max~%dus%n",
+                name, ns / 1_000_000, (events.get() - e0) * 1e9 / ns, s.p50 / 1000, s.p99 / 1000, s.max / 1000);
+    }
+}
@@ -0,0 +1,286 @@
+/*FOLLOW-UP: Batch range reads with prefix sums
+
+Dashboards: for 1000s of ads call getDailyAdEventHistory, then sum [from, to]
+client side -> one List<AdEventBucket> + 30 objects per ad, full history walk.
+
+Per ad keep CUMULATIVE counters by day instead:
+  cum(d) = events of this ad with day <= d
+  sum(from..to) = cum(to) - cum(from - 1)        -> O(1), two reads per metric
+
+Stored in a ring of RETENTION_DAYS slots (slot = epochDay % 30, tagged with the day):
+  event on newest day        -> cum[newest] += 1                     O(1)  (the common case)
+  new day D > newest         -> carry cum[newest] into newest+1 .. D O(gap), once per day
+  late event on day d        -> cum[d .. newest] += 1               O(newest - d) <= 30
+  base = cum(day just before the ring), so from = oldest retained day still works
+
+Reads use a StampedLock optimistic read (no lock, no CAS) and retry only if a
+writer interleaved -> dashboards never slow ingestion down.
+
+getAggregates(ads, from, to):
+  split ads into chunks -> RecursiveAction on a shared ForkJoinPool
+  result = parallel primitive arrays (impressions[], clicks[]) in input order,
+  -1 for unknown ads. No per-day objects.
+
+Range must be inside retention (from is clamped to the oldest retained day).
+
+Fed by MultiThreadedAdClickSystem.consumeAdEvents after the dedupe check (getAggregates there).
+Its purge remove()s ads whose history emptied and calls purgeBefore(cutoff): from is then
+also clamped to the cutoff, so purged days drop out of every range without touching the
+rings. Partition handoff moves an ad's exact day counts out (remove) and in (addCounts).
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.StampedLock;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+public class PrefixSumAggregates {
+
+    static final int RETENTION_DAYS = MultiThreadedAdClickSystem.RETENTION_DAYS;
+    static final int PARALLEL_THRESHOLD = 2048;
+
+    private final ConcurrentHashMap<UUID, AdPrefix> prefixes = new ConcurrentHashMap<>();
+    private final ForkJoinPool pool;
+    private volatile long purgedBeforeDay = Long.MIN_VALUE;     // earlier days left the store
+
+    public PrefixSumAggregates(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Compact batch result; index i belongs to the i-th requested ad. */
+    static final class Aggregates {
+        final UUID[] ads;
+        final long[] impressions;   // -1 = unknown ad
+        final long[] clicks;
+
+        Aggregates(UUID[] ads) {
+            this.ads = ads;
+            this.impressions = new long[ads.length];
+            this.clicks = new long[ads.length];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < ads.length; i++) {
+                sb.append(ads[i]).append(" : impressions=").append(impressions[i])
+                  .append(", clicks=").append(clicks[i]).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    // ---------------- Write side ----------------
+
+    /** Call once per NEW (already deduplicated) event. */
+    public void onEvent(UUID adUUID, LocalDate date, AdEventType type) {
+        AdPrefix p = prefixes.get(adUUID);
+        if (p == null) p = prefixes.computeIfAbsent(adUUID, k -> new AdPrefix());
+        p.add(date.toEpochDay(), type == AdEventType.IMPRESSION ? 1 : 0, type == AdEventType.CLICK ? 1 : 0);
+    }
+
+    /** Hand-off in: a whole day's counts of an ad at once. */
+    public void addCounts(UUID adUUID, LocalDate date, long impressions, long clicks) {
+        if (impressions == 0 && clicks == 0) return;
+        AdPrefix p = prefixes.get(adUUID);
+        if (p == null) p = prefixes.computeIfAbsent(adUUID, k -> new AdPrefix());
+        p.add(date.toEpochDay(), impressions, clicks);
+    }
+
+    public void remove(UUID adUUID) {
+        prefixes.remove(adUUID);
+    }
+
+    /** Days before the cutoff were purged from the store: ranges start at the cutoff from now on. */
+    public synchronized void purgeBefore(LocalDate cutoffDateExclusive) {
+        purgedBeforeDay = Math.max(purgedBeforeDay, cutoffDateExclusive.toEpochDay());
+    }
+
+    // ---------------- Read side ----------------
+
+    public Aggregates getAggregates(Collection<UUID> ads, LocalDate from, LocalDate to) {
+        Aggregates out = new Aggregates(ads.toArray(new UUID[0]));
+        long fromDay = Math.max(from.toEpochDay(), purgedBeforeDay);
+        long toDay = to.toEpochDay();
+        if (out.ads.length <= PARALLEL_THRESHOLD) {
+            fill(out, 0, out.ads.length, fromDay, toDay);
+        } else {
+            pool.invoke(new Chunk(out, 0, out.ads.length, fromDay, toDay));
+        }
+        return out;
+    }
+
+    private void fill(Aggregates out, int lo, int hi, long fromDay, long toDay) {
+        for (int i = lo; i < hi; i++) {
+            AdPrefix p = prefixes.get(out.ads[i]);
+            if (p == null) {
+                out.impressions[i] = -1;
+                out.clicks[i] = -1;
+            } else {
+                p.range(fromDay, toDay, out, i);
+            }
+        }
+    }
+
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Aggregates out;
+        final int lo, hi;
+        final long fromDay, toDay;
+
+        Chunk(Aggregates out, int lo, int hi, long fromDay, long toDay) {
+            this.out = out;
+            this.lo = lo;
+            this.hi = hi;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= PARALLEL_THRESHOLD) {
+                fill(out, lo, hi, fromDay, toDay);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Chunk(out, lo, mid, fromDay, toDay), new Chunk(out, mid, hi, fromDay, toDay));
+        }
+    }
+
+    // ---------------- Per-ad cumulative ring ----------------
+
+    private static final class AdPrefix {
+        final StampedLock lock = new StampedLock();
+        final long[] day = new long[RETENTION_DAYS];
+        final long[] cumImpressions = new long[RETENTION_DAYS];
+        final long[] cumClicks = new long[RETENTION_DAYS];
+        long newest = Long.MIN_VALUE;
+        long baseImpressions, baseClicks;       // cum(newest - RETENTION_DAYS), i.e. just before the ring
+
+        AdPrefix() {
+            Arrays.fill(day, Long.MIN_VALUE);
+        }
+
+        void add(long d, long imp, long clk) {
+            long stamp = lock.writeLock();
+            try {
+                if (newest == Long.MIN_VALUE) {
+                    newest = d;
+                } else if (d > newest) {
+                    advance(d);
+                }
+
+                if (d <= newest - RETENTION_DAYS) {
+                    // older than the ring: every retained cum includes it
+                    baseImpressions += imp;
+                    baseClicks += clk;
+                    for (int s = 0; s < RETENTION_DAYS; s++) {
+                        cumImpressions[s] += imp;
+                        cumClicks[s] += clk;
+                    }
+                    return;
+                }
+                for (long x = d; x <= newest; x++) {        // usually just x == newest
+                    int s = slot(x);
+                    if (day[s] != x) {                      // before the ad's first day: cum was base
+                        day[s] = x;
+                        cumImpressions[s] = baseImpressions;
+                        cumClicks[s] = baseClicks;
+                    }
+                    cumImpressions[s] += imp;
+                    cumClicks[s] += clk;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /** Move the ring to end at d, carrying cum(newest) into the new days. */
+        private void advance(long d) {
+            long carryImp = cum(cumImpressions, baseImpressions, newest, newest);
+            long carryClk = cum(cumClicks, baseClicks, newest, newest);
+            long newBaseImp = cum(cumImpressions, baseImpressions, newest, d - RETENTION_DAYS);
+            long newBaseClk = cum(cumClicks, baseClicks, newest, d - RETENTION_DAYS);
+            for (long x = Math.max(newest + 1, d - RETENTION_DAYS + 1); x <= d; x++) {
+                int s = slot(x);
+                day[s] = x;
+                cumImpressions[s] = carryImp;
+                cumClicks[s] = carryClk;
+            }
+            baseImpressions = newBaseImp;
+            baseClicks = newBaseClk;
+            newest = d;
+        }
+
+        /** cum(y) for y <= n as seen by a ring ending at n. */
+        private long cum(long[] arr, long base, long n, long y) {
+            if (y >= n) y = n;
+            if (y <= n - RETENTION_DAYS) return base;
+            int s = slot(y);
+            return day[s] == y ? arr[s] : base;
+        }
+
+        /** Writes sum over [fromDay, toDay] (clamped to the ring) into out[i]. */
+        void range(long fromDay, long toDay, Aggregates out, int i) {
+            long stamp = lock.tryOptimisticRead();
+            long imp = sum(cumImpressions, baseImpressions, fromDay, toDay);
+            long clk = sum(cumClicks, baseClicks, fromDay, toDay);
+            if (!lock.validate(stamp)) {                   // a writer interleaved: read again under the lock
+                stamp = lock.readLock();
+                try {
+                    imp = sum(cumImpressions, baseImpressions, fromDay, toDay);
+                    clk = sum(cumClicks, baseClicks, fromDay, toDay);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            out.impressions[i] = imp;
+            out.clicks[i] = clk;
+        }
+
+        private long sum(long[] arr, long base, long fromDay, long toDay) {
+            long n = newest;
+            if (n == Long.MIN_VALUE) return 0;
+            long to = Math.min(toDay, n);
+            long from = Math.max(fromDay, n - RETENTION_DAYS + 1);
+            if (from > to) return 0;
+            return cum(arr, base, n, to) - cum(arr, base, n, from - 1);
+        }
+
+        private static int slot(long d) {
+            return (int) Math.floorMod(d, (long) RETENTION_DAYS);
+        }
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) {
+        PrefixSumAggregates agg = new PrefixSumAggregates(ForkJoinPool.commonPool());
+        LocalDate today = LocalDate.now();
+        int n = 10_000;
+        List<UUID> ads = new ArrayList<>();
+        for (int i = 0; i < n; i++) ads.add(UUID.randomUUID());
+
+        // ad i: (d + 1) impressions on day today - 9 + d, for d = 0..9, and one click today
+        for (int d = 0; d < 10; d++) {
+            for (UUID ad : ads) {
+                for (int k = 0; k <= d; k++) agg.onEvent(ad, today.minusDays(9 - d), AdEventType.IMPRESSION);
+            }
+        }
+        for (UUID ad : ads) agg.onEvent(ad, today, AdEventType.CLICK);
+        agg.onEvent(ads.get(0), today.minusDays(5), AdEventType.IMPRESSION);   // late event
+
+        long t0 = System.nanoTime();
+        Aggregates r = agg.getAggregates(ads, today.minusDays(2), today);       // 8 + 9 + 10 = 27
+        System.out.printf("%d ads in %d us%n", n, (System.nanoTime() - t0) / 1000);
+        System.out.println("ad[0] last 3 days: impressions=" + r.impressions[0] + ", clicks=" + r.clicks[0]);
+        Aggregates all = agg.getAggregates(List.of(ads.get(0), UUID.randomUUID()), today.minusDays(40), today);
+        System.out.print("ad[0] all retained (55 + 1 late) and an unknown ad:\n" + all);
+    }
+}
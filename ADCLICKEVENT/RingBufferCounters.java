@@ -0,0 +1,336 @@
+/*FOLLOW-UP: Epoch-day ring buffer instead of ConcurrentSkipListMap<LocalDate, DailyCounter>
+
+Per day today we pay: skip-list node + index nodes + LocalDate + DailyCounter + 2 LongAdders.
+But the window is never longer than RETENTION_DAYS = 30.
+
+So per ad keep a FIXED ring:
+slot = epochDay % RETENTION_DAYS
+counts = one AtomicLongArray of 2 * 30 longs  -> [impressions(slot) | clicks(slot)]
+
+Each long packs (epochDay tag, count):
+  high 24 bits = epochDay   (covers dates up to year ~47000)
+  low  40 bits = count      (~10^12 events per ad per day)
+
+Update = CAS loop on one long:
+  tag == day        -> count + 1
+  tag <  day        -> the day slot pair is reused by a newer day: rotate (below), then count
+  tag >  day        -> event older than the ring, drop it
+
+Because tag and count change in ONE CAS, an add can never land in the wrong day
+even while the slot rotates -> no per-ad lock on the counting path.
+
+A day lives in TWO longs (impressions slot, clicks slot) but leaves as ONE sink record,
+so both slots of a day expire together: rotation and purge take the ring's monitor,
+move both slots of the pair in one pass (rotation tags the pair (newDay, 0), so a late
+event for the old day sees a newer tag and is dropped, like an event older than the ring),
+and dump (day, impressions, clicks) once, after releasing the monitor. The monitor is
+only taken once per slot per day; same-day increments never touch it.
+
+purgeOldData  -> per ad: look at 30 slot pairs, take the expired pairs to 0 (no headMap copies)
+                 an empty ring is retired before it is unmapped: every slot CAS 0 -> RETIRED,
+                 so an increment holding the old ring sees RETIRED and retries on the map
+                 instead of counting into a detached ring (a slot that is no longer 0 aborts it)
+history       -> linear scan of the 30 slots
+isAdCapped    -> read ROLLING_WINDOW_LENGTH_DAYS slots
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongPredicate;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEvent;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventBucket;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+public class RingBufferAdClickSystem {
+
+    static final int RETENTION_DAYS = MultiThreadedAdClickSystem.RETENTION_DAYS;
+
+    static final int COUNT_BITS = 40;
+    static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    static final long RETIRED = -1L;                 // slot of a ring that purge is unmapping
+
+    private final ConcurrentHashMap<UUID, AtomicLongArray> eventStore = new ConcurrentHashMap<>();
+    private final BoundedDedupeStore seenStore;
+    private final ExpiredDaySink sink;
+
+    public RingBufferAdClickSystem(BoundedDedupeStore seenStore, ExpiredDaySink sink) {
+        this.seenStore = seenStore;
+        this.sink = sink;
+    }
+
+    // ---------------- Packing ----------------
+
+    static long pack(long epochDay, long count) {
+        return (epochDay << COUNT_BITS) | count;
+    }
+
+    static long dayOf(long packed) {
+        return packed >>> COUNT_BITS;
+    }
+
+    static long countOf(long packed) {
+        return packed & COUNT_MASK;
+    }
+
+    static int slotOf(long epochDay) {
+        return (int) Math.floorMod(epochDay, (long) RETENTION_DAYS);
+    }
+
+    // ---------------- Public API ----------------
+
+    public void consumeAdEvents(final List<AdEvent> events) {
+        for (AdEvent e : events) {
+            accept(e.adUUID, e.timestamp.toLocalDate().toEpochDay(), e.timestamp.toLocalTime().toNanoOfDay(), e.type);
+        }
+    }
+
+    /**
+     * Dedupe + count one event from primitive fields.
+     * @return false if it was a duplicate or outside the window (seenStore.outOfWindowCount()).
+     */
+    public boolean accept(UUID adUUID, long epochDay, long nanoOfDay, AdEventType type) {
+        if (!seenStore.markSeen(adUUID, epochDay, nanoOfDay, type)) return false;
+        increment(adUUID, epochDay, type);
+        return true;
+    }
+
+    /** Counts one already-deduplicated event. */
+    public void increment(UUID adUUID, long epochDay, AdEventType type) {
+        int idx = slotOf(epochDay) + (type == AdEventType.IMPRESSION ? 0 : RETENTION_DAYS);
+        while (true) {
+            AtomicLongArray counts = eventStore.get(adUUID);
+            if (counts == null) counts = eventStore.computeIfAbsent(adUUID, k -> new AtomicLongArray(2 * RETENTION_DAYS));
+            if (add(adUUID, counts, idx, epochDay)) return;
+            Thread.onSpinWait();                                        // purge is retiring this ring
+        }
+    }
+
+    /**
+     * Take back one increment of epochDay (DurableAdClickSystem, when the WAL refused the event).
+     * A count that reaches 0 keeps its day tag, like a rotation tag; a day that already left the
+     * slot was dumped with the event in it and is not corrected.
+     */
+    void decrement(UUID adUUID, long epochDay, AdEventType type) {
+        AtomicLongArray counts = eventStore.get(adUUID);
+        if (counts == null) return;
+        int idx = slotOf(epochDay) + (type == AdEventType.IMPRESSION ? 0 : RETENTION_DAYS);
+        while (true) {
+            long cur = counts.get(idx);
+            if (cur == RETIRED || cur == 0 || dayOf(cur) != epochDay || countOf(cur) == 0) return;
+            if (counts.compareAndSet(idx, cur, cur - 1)) return;
+        }
+    }
+
+    /** @return false if the slot is RETIRED; the caller re-reads the map and retries. */
+    private boolean add(UUID adUUID, AtomicLongArray counts, int idx, long epochDay) {
+        while (true) {
+            long cur = counts.get(idx);
+            if (cur == RETIRED) return false;
+            long curDay = dayOf(cur);
+            if (cur != 0 && curDay > epochDay) return true;            // older than the ring
+
+            if (cur != 0 && curDay == epochDay) {
+                if (counts.compareAndSet(idx, cur, cur + 1)) return true;
+            } else if (cur == 0) {
+                if (counts.compareAndSet(idx, 0L, pack(epochDay, 1))) return true;
+            } else if (!rotate(adUUID, counts, slotOf(epochDay), epochDay)) {
+                return false;                                           // retired while rotating
+            }
+        }
+    }
+
+    /**
+     * Tag both slots of the pair with (epochDay, 0) and dump the day they held as one record.
+     * @return false if the ring was retired.
+     */
+    private boolean rotate(UUID adUUID, AtomicLongArray counts, int slot, long epochDay) {
+        long imp, clk;
+        synchronized (counts) {
+            imp = takeIf(counts, slot, day -> day < epochDay, pack(epochDay, 0));
+            if (imp == RETIRED) return false;
+            clk = takeIf(counts, slot + RETENTION_DAYS, day -> day < epochDay, pack(epochDay, 0));
+            if (clk == RETIRED) return false;
+        }
+        expire(adUUID, imp, clk);
+        return true;
+    }
+
+    /**
+     * CAS slot idx to replacement if it holds a day matching old. Increments on it are lock-free,
+     * so this retries until it wins or the slot no longer matches.
+     * @return the value taken (0 if none), or RETIRED.
+     */
+    private static long takeIf(AtomicLongArray counts, int idx, LongPredicate old, long replacement) {
+        while (true) {
+            long cur = counts.get(idx);
+            if (cur == RETIRED) return RETIRED;
+            if (cur == 0 || !old.test(dayOf(cur))) return 0;
+            if (counts.compareAndSet(idx, cur, replacement)) return cur;
+        }
+    }
+
+    /** Oldest -> newest, same contract as MultiThreadedAdClickSystem. */
+    public List<AdEventBucket> getDailyAdEventHistory(final UUID adUUID) {
+        AtomicLongArray counts = eventStore.get(adUUID);
+        if (counts == null) {
+            throw new IllegalArgumentException("No data for adUUID: " + adUUID);
+        }
+
+        long[] days = new long[RETENTION_DAYS];
+        int n = 0;
+        for (int s = 0; s < RETENTION_DAYS; s++) {
+            long day = Math.max(liveDay(counts.get(s)), liveDay(counts.get(s + RETENTION_DAYS)));
+            if (day >= 0) days[n++] = day;
+        }
+        Arrays.sort(days, 0, n);
+
+        List<AdEventBucket> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            long day = days[i];
+            result.add(new AdEventBucket(LocalDate.ofEpochDay(day),
+                    (int) countAt(counts, day, 0), (int) countAt(counts, day, RETENTION_DAYS)));
+        }
+        return result;
+    }
+
+    public boolean isAdCappedAtDate(final UUID adUUID, final LocalDate date) {
+        AtomicLongArray counts = eventStore.get(adUUID);
+        if (counts == null) {
+            throw new IllegalArgumentException("No data for adUUID: " + adUUID);
+        }
+
+        long end = date.toEpochDay();
+        long impressions = 0;
+        long clicks = 0;
+        for (long d = end - MultiThreadedAdClickSystem.ROLLING_WINDOW_LENGTH_DAYS + 1; d <= end; d++) {
+            impressions += countAt(counts, d, 0);
+            clicks += countAt(counts, d, RETENTION_DAYS);
+        }
+        return impressions >= MultiThreadedAdClickSystem.IMPRESSION_LIMIT && clicks == 0;
+    }
+
+    /**
+     * Zero every slot pair older than cutoffDateExclusive and hand each day to the sink once.
+     * Per ad this is a fixed 2 * RETENTION_DAYS reads; the ring's monitor is only taken for
+     * pairs that actually expire, and never while calling the sink.
+     */
+    public void purgeOldData(LocalDate cutoffDateExclusive) {
+        purge(cutoffDateExclusive, true);
+    }
+
+    /** Same as purgeOldData without the sink: WAL replay of a purge whose days were already dumped. */
+    void dropOldData(LocalDate cutoffDateExclusive) {
+        purge(cutoffDateExclusive, false);
+    }
+
+    private void purge(LocalDate cutoffDateExclusive, boolean dump) {
+        long cutoff = cutoffDateExclusive.toEpochDay();
+        for (Map.Entry<UUID, AtomicLongArray> entry : eventStore.entrySet()) {
+            AtomicLongArray counts = entry.getValue();
+            boolean empty = true;
+            for (int slot = 0; slot < RETENTION_DAYS; slot++) {
+                long impCur = live(counts.get(slot));
+                long clkCur = live(counts.get(slot + RETENTION_DAYS));
+                boolean expired = impCur != 0 && dayOf(impCur) < cutoff || clkCur != 0 && dayOf(clkCur) < cutoff;
+                if (expired) {
+                    long imp, clk;
+                    synchronized (counts) {
+                        imp = live(takeIf(counts, slot, day -> day < cutoff, 0L));
+                        clk = live(takeIf(counts, slot + RETENTION_DAYS, day -> day < cutoff, 0L));
+                    }
+                    if (dump) expire(entry.getKey(), imp, clk);
+                }
+                if (live(counts.get(slot)) != 0 || live(counts.get(slot + RETENTION_DAYS)) != 0) empty = false;
+            }
+            if (empty && retire(counts)) {
+                eventStore.remove(entry.getKey(), counts);
+                seenStore.removeIfOlderThan(entry.getKey(), cutoff);
+            }
+        }
+    }
+
+    /**
+     * CAS every slot 0 -> RETIRED. If an increment got into a slot first, undo and keep the ring.
+     * Once all slots are RETIRED no increment can land in it any more, so unmapping loses nothing.
+     */
+    private static boolean retire(AtomicLongArray counts) {
+        for (int idx = 0; idx < counts.length(); idx++) {
+            if (!counts.compareAndSet(idx, 0L, RETIRED)) {
+                for (int undo = 0; undo < idx; undo++) counts.set(undo, 0L);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------------- Checkpoint support (DurableAdClickSystem) ----------------
+
+    Set<UUID> adIds() {
+        return eventStore.keySet();
+    }
+
+    AtomicLongArray countersOf(UUID adUUID) {
+        return eventStore.get(adUUID);
+    }
+
+    void restoreCounters(UUID adUUID, AtomicLongArray counts) {
+        eventStore.put(adUUID, counts);
+    }
+
+    // ---------------- Helpers ----------------
+
+    /** Slot value with RETIRED read as empty. */
+    static long live(long packed) {
+        return packed == RETIRED ? 0 : packed;
+    }
+
+    private static long liveDay(long packed) {
+        return live(packed) == 0 ? -1 : dayOf(packed);
+    }
+
+    private static long countAt(AtomicLongArray counts, long epochDay, int offset) {
+        long v = live(counts.get(slotOf(epochDay) + offset));
+        return v != 0 && dayOf(v) == epochDay ? countOf(v) : 0;
+    }
+
+    /** One record per day; the two slots of a pair only differ in day if one was empty for a whole lap. */
+    private void expire(UUID adUUID, long imp, long clk) {
+        if (imp != 0 && clk != 0 && dayOf(imp) == dayOf(clk)) {
+            dumpDay(adUUID, dayOf(imp), countOf(imp), countOf(clk));
+            return;
+        }
+        if (imp != 0) dumpDay(adUUID, dayOf(imp), countOf(imp), 0);
+        if (clk != 0) dumpDay(adUUID, dayOf(clk), 0, countOf(clk));
+    }
+
+    private void dumpDay(UUID adUUID, long epochDay, long impressions, long clicks) {
+        if (impressions == 0 && clicks == 0) return;              // only a rotation tag, nothing counted
+        sink.dump(adUUID, LocalDate.ofEpochDay(epochDay), impressions, clicks);
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) {
+        BoundedDedupeStore seen = new BoundedDedupeStore(1_000);
+        RingBufferAdClickSystem svc = new RingBufferAdClickSystem(seen, ExpiredDaySink.PRINT);
+
+        UUID ad = UUID.randomUUID();
+        java.time.LocalDateTime now = java.time.LocalDateTime.now();
+        List<AdEvent> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) batch.add(new AdEvent(ad, now.minusDays(1).withHour(i), AdEventType.IMPRESSION));
+        batch.add(new AdEvent(ad, now.minusDays(40), AdEventType.CLICK));                // late: rejected, counted
+        batch.add(new AdEvent(ad, now, AdEventType.IMPRESSION));
+        batch.add(new AdEvent(ad, now, AdEventType.IMPRESSION));                         // duplicate
+        svc.consumeAdEvents(batch);
+
+        System.out.println("History: " + svc.getDailyAdEventHistory(ad));
+        System.out.println("Rejected as out of window: " + seen.outOfWindowCount());
+        System.out.println("Capped today? " + svc.isAdCappedAtDate(ad, LocalDate.now()));
+        svc.purgeOldData(LocalDate.now().minusDays(RETENTION_DAYS));
+        System.out.println("History after purge: " + svc.getDailyAdEventHistory(ad));
+    }
+}
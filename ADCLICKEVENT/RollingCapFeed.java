@@ -0,0 +1,330 @@
+/*FOLLOW-UP: O(1) "is capped now" + capped-ad change feed
+
+isAdCappedAtDate re-sums ROLLING_WINDOW_LENGTH_DAYS of LongAdders per call,
+and the ad server calls it for EVERY impression decision.
+
+Reads >> writes, so move the work to the write side:
+
+per ad keep
+  ring of W day slots (impressions, clicks) for the window ending at windowEnd
+  running totals windowImpressions / windowClicks
+  volatile boolean capped
+
+event for day d in window -> slot += 1, total += 1, re-check threshold   O(1)
+day d > windowEnd         -> shift: subtract slots leaving the window      O(W), once per day
+advanceTo(today)          -> daily sweep so ads with no traffic also roll (and can un-cap)
+
+isCappedNow(ad) = one volatile read.
+
+Change feed:
+whenever capped flips we publish (ad, capped) to subscribers.
+Flips are detected under the per-ad lock and handed to ONE dispatcher thread,
+so every subscriber sees an ad's flips in order and ingestion never runs listener code.
+subscribe() queues the snapshot on that same dispatcher: the listener gets onSnapshot(current
+capped set) first, then every later flip -> serving node builds its local cache from the
+snapshot, then applies deltas, no polling, and no flip can land before (and be overwritten by)
+the snapshot.
+
+Fed by MultiThreadedAdClickSystem.consumeAdEvents after dedupe (isAdCappedNow / capFeed()).
+Partition handoff: exportWindow(ad) retires the ad here (un-cap flip on this feed) and returns
+its slots; importWindow on the new owner merges them and re-checks (cap flip on that feed).
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+public class RollingCapTracker {
+
+    static final int WINDOW = MultiThreadedAdClickSystem.ROLLING_WINDOW_LENGTH_DAYS;
+    static final int IMPRESSION_LIMIT = MultiThreadedAdClickSystem.IMPRESSION_LIMIT;
+
+    interface CappedAdListener {
+        void onCappedChange(UUID adUUID, boolean capped);
+
+        /** Delivered once, before any flip: the capped set to (re)build the local cache from. */
+        default void onSnapshot(Set<UUID> cappedAds) {
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, AdWindow> windows = new ConcurrentHashMap<>();
+    private final Set<UUID> cappedAds = ConcurrentHashMap.newKeySet();
+    private final List<CappedAdListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "capped-ad-feed");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder listenerErrors = new LongAdder();
+    private final Consumer<RuntimeException> listenerErrorHandler;
+
+    private volatile long today;
+
+    public RollingCapTracker(LocalDate today) {
+        this(today, e -> { });
+    }
+
+    /** @param listenerErrorHandler gets every exception a listener throws (the feed keeps going). */
+    public RollingCapTracker(LocalDate today, Consumer<RuntimeException> listenerErrorHandler) {
+        this.today = today.toEpochDay();
+        this.listenerErrorHandler = listenerErrorHandler;
+    }
+
+    // ---------------- Write side ----------------
+
+    /** Call once per NEW (already deduplicated) event. */
+    public void onEvent(UUID adUUID, LocalDate date, AdEventType type) {
+        long day = date.toEpochDay();
+        while (true) {
+            AdWindow w = windows.get(adUUID);
+            if (w == null) w = windows.computeIfAbsent(adUUID, k -> new AdWindow(adUUID, today));
+            if (w.add(day, type)) return;
+            windows.remove(adUUID, w);                    // removed under us: retry on a fresh window
+        }
+    }
+
+    /** Roll every ad's window to the new day; run from the daily/minutely scheduler. */
+    public void advanceTo(LocalDate date) {
+        long day = date.toEpochDay();
+        if (day <= today) return;
+        today = day;
+        for (AdWindow w : windows.values()) w.shiftTo(day);
+    }
+
+    /**
+     * Detach an ad for a partition handoff: its window counts, or null if it has none.
+     * The ad is retired here like remove(); the caller keeps ingestion for it away meanwhile.
+     */
+    public WindowState exportWindow(UUID adUUID) {
+        AdWindow w = windows.get(adUUID);
+        if (w == null) return null;
+        WindowState state = w.retireAndCopy();
+        windows.remove(adUUID, w);
+        return state;
+    }
+
+    /** Merge a window handed off by another node; publishes a flip if the ad ends up capped. */
+    public void importWindow(UUID adUUID, WindowState state) {
+        if (state == null) return;
+        while (true) {
+            AdWindow w = windows.get(adUUID);
+            if (w == null) w = windows.computeIfAbsent(adUUID, k -> new AdWindow(adUUID, today));
+            if (w.merge(state)) return;
+            windows.remove(adUUID, w);
+        }
+    }
+
+    /** Drop an ad whose history was purged. */
+    public void remove(UUID adUUID) {
+        AdWindow w = windows.get(adUUID);
+        if (w == null) return;
+        w.retire();                                       // before unmapping: its un-cap flip goes out first
+        windows.remove(adUUID, w);
+    }
+
+    // ---------------- Read side ----------------
+
+    /** O(1): capped in the window ending today. */
+    public boolean isCappedNow(UUID adUUID) {
+        AdWindow w = windows.get(adUUID);
+        if (w == null) {
+            throw new IllegalArgumentException("No data for adUUID: " + adUUID);
+        }
+        return w.capped;
+    }
+
+    /**
+     * Register for flips. Snapshot and registration run on the dispatcher, so the listener
+     * gets onSnapshot first and then exactly the flips dispatched after it, in order.
+     * A flip already contained in the snapshot may be replayed once; applying it is idempotent.
+     */
+    public void subscribe(CappedAdListener listener) {
+        dispatch(() -> {
+            listener.onSnapshot(new HashSet<>(cappedAds));
+            listeners.add(listener);
+        });
+    }
+
+    public void unsubscribe(CappedAdListener listener) {
+        dispatch(() -> listeners.remove(listener));
+    }
+
+    /** Exceptions thrown by listeners so far (also handed to the error handler). */
+    public long listenerErrors() {
+        return listenerErrors.sum();
+    }
+
+    /** Stops the feed; later flips still update isCappedNow but are not dispatched. */
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    private void publish(UUID adUUID, boolean capped) {
+        if (capped) cappedAds.add(adUUID);
+        else cappedAds.remove(adUUID);
+        dispatch(() -> {
+            for (CappedAdListener l : listeners) l.onCappedChange(adUUID, capped);
+        });
+    }
+
+    private void dispatch(Runnable task) {
+        try {
+            dispatcher.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // a broken listener must not kill the dispatcher; Errors still propagate
+                    listenerErrors.increment();
+                    listenerErrorHandler.accept(e);
+                }
+            });
+        } catch (RejectedExecutionException shutDown) {
+            // feed closed: never fail ingestion because nobody is listening any more
+        }
+    }
+
+    /** One ad's window slots, detached for a handoff. Slot of day d = floorMod(d, WINDOW). */
+    static final class WindowState {
+        final long windowEnd;
+        final int[] impressions;
+        final int[] clicks;
+
+        WindowState(long windowEnd, int[] impressions, int[] clicks) {
+            this.windowEnd = windowEnd;
+            this.impressions = impressions;
+            this.clicks = clicks;
+        }
+    }
+
+    // ---------------- Per-ad window ----------------
+
+    private final class AdWindow {
+        final UUID adUUID;
+        final int[] impressions = new int[WINDOW];
+        final int[] clicks = new int[WINDOW];
+        long windowEnd;
+        long windowImpressions;
+        long windowClicks;
+        volatile boolean capped;
+        boolean retired;                                  // removed from windows, never reused
+
+        AdWindow(UUID adUUID, long windowEnd) {
+            this.adUUID = adUUID;
+            this.windowEnd = windowEnd;
+        }
+
+        /** @return false if this window was retired; the caller retries on the map. */
+        synchronized boolean add(long day, AdEventType type) {
+            if (retired) return false;
+            if (day > windowEnd) shiftLocked(day);
+            if (day <= windowEnd - WINDOW) return true;   // too old to affect the window
+
+            int slot = (int) Math.floorMod(day, (long) WINDOW);
+            if (type == AdEventType.IMPRESSION) {
+                impressions[slot]++;
+                windowImpressions++;
+            } else {
+                clicks[slot]++;
+                windowClicks++;
+            }
+            recheck();
+            return true;
+        }
+
+        synchronized void shiftTo(long day) {
+            if (day > windowEnd) {
+                shiftLocked(day);
+                recheck();
+            }
+        }
+
+        synchronized void retire() {
+            retired = true;
+            if (capped) {
+                capped = false;
+                publish(adUUID, false);
+            }
+        }
+
+        synchronized WindowState retireAndCopy() {
+            WindowState state = new WindowState(windowEnd, impressions.clone(), clicks.clone());
+            retire();
+            return state;
+        }
+
+        /** @return false if this window was retired; the caller retries on the map. */
+        synchronized boolean merge(WindowState state) {
+            if (retired) return false;
+            if (state.windowEnd > windowEnd) shiftLocked(state.windowEnd);
+            // days of the handed-off window that are still inside ours (windowEnd >= state.windowEnd now)
+            for (long d = windowEnd - WINDOW + 1; d <= state.windowEnd; d++) {
+                int slot = (int) Math.floorMod(d, (long) WINDOW);
+                impressions[slot] += state.impressions[slot];
+                clicks[slot] += state.clicks[slot];
+                windowImpressions += state.impressions[slot];
+                windowClicks += state.clicks[slot];
+            }
+            recheck();
+            return true;
+        }
+
+        private void shiftLocked(long day) {
+            long steps = Math.min(day - windowEnd, WINDOW);
+            for (long d = windowEnd + 1; d <= windowEnd + steps; d++) {
+                int slot = (int) Math.floorMod(d, (long) WINDOW);   // slot d reuses slot d - WINDOW
+                windowImpressions -= impressions[slot];
+                windowClicks -= clicks[slot];
+                impressions[slot] = 0;
+                clicks[slot] = 0;
+            }
+            windowEnd = day;
+        }
+
+        private void recheck() {
+            boolean now = windowImpressions >= IMPRESSION_LIMIT && windowClicks == 0;
+            if (now != capped) {
+                capped = now;
+                publish(adUUID, now);
+            }
+        }
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) throws Exception {
+        LocalDate day0 = LocalDate.now();
+        RollingCapTracker tracker = new RollingCapTracker(day0);
+        Set<UUID> localCache = ConcurrentHashMap.newKeySet();
+        tracker.subscribe(new CappedAdListener() {
+            @Override
+            public void onSnapshot(Set<UUID> cappedAds) {
+                localCache.clear();
+                localCache.addAll(cappedAds);
+            }
+
+            @Override
+            public void onCappedChange(UUID ad, boolean capped) {
+                if (capped) localCache.add(ad);
+                else localCache.remove(ad);
+                System.out.println("feed: " + ad + " capped=" + capped);
+            }
+        });
+
+        UUID ad = UUID.randomUUID();
+        for (int i = 0; i < IMPRESSION_LIMIT; i++) tracker.onEvent(ad, day0, AdEventType.IMPRESSION);
+        System.out.println("capped now? " + tracker.isCappedNow(ad));          // true
+
+        tracker.advanceTo(day0.plusDays(WINDOW));                             // impressions roll out
+        System.out.println("capped now? " + tracker.isCappedNow(ad));          // false
+
+        Thread.sleep(100);
+        System.out.println("local cache: " + localCache);
+        tracker.shutdown();
+    }
+}
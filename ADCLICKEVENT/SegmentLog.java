@@ -0,0 +1,362 @@
+/*FOLLOW-UP: Real persistence sink for purged days (group-commit segment log)
+
+Today: dumpExpiredDataToPersistentStore builds a String, appends to a synchronizedList
+and println()s -- all while purgeOldData holds the per-ad ReentrantLock.
+
+Fix = split "hand off" from "write":
+
+purge thread  --append(record)-->  bounded queue  -->  1 background writer
+                 (memory only)                         drains a batch
+                                                       encodes fixed 44-byte records
+                                                       one write() per batch
+                                                       fsync per policy (group commit)
+
+Record layout (big endian, 44 bytes):
+  adMsb long | adLsb long | epochDay long | impressions long | clicks long | crc32 int
+
+Fsync policy:
+  EVERY_BATCH -> durable before flush() futures complete, one fsync amortised over the batch
+  INTERVAL    -> fsync at most every N ms, and at least N ms after the last write: an idle
+                 writer waits with a timed poll, so the last batch is not left un-fsynced
+  NONE        -> leave it to the OS page cache
+
+Backpressure: queue is bounded. append() waits for space, tryAppend() returns false.
+Either way the caller only ever waits on memory, never on the disk directly,
+and purge should call it AFTER releasing the ad lock.
+
+Writer failure (IOException): recorded once, queued flush() futures fail, and from then on
+append / flush / close throw IllegalStateException instead of blocking on a dead writer
+(producers waiting for queue space re-check every 50 ms).
+
+Files: segment-<firstSeq>.log, rolled at segmentBytes. Closed segments are immutable,
+so SegmentReader can scan them (by ad + date range) while the writer keeps going.
+
+Java Code*/
+package ParkingSpot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+public class SegmentLog implements ExpiredDaySink, AutoCloseable {
+
+    static final int RECORD_BYTES = 44;
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+
+    enum FsyncPolicy { EVERY_BATCH, INTERVAL, NONE }
+
+    static final class ExpiredDayRecord {
+        final UUID adUUID;
+        final long epochDay;
+        final long impressions;
+        final long clicks;
+
+        ExpiredDayRecord(UUID adUUID, long epochDay, long impressions, long clicks) {
+            this.adUUID = adUUID;
+            this.epochDay = epochDay;
+            this.impressions = impressions;
+            this.clicks = clicks;
+        }
+
+        @Override
+        public String toString() {
+            return "ad=" + adUUID + ", date=" + LocalDate.ofEpochDay(epochDay)
+                    + ", impressions=" + impressions + ", clicks=" + clicks;
+        }
+    }
+
+    private static final class FlushMarker {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    private static final Object CLOSE = new Object();
+    private static final long RECHECK_MS = 50;
+
+    private final Path dir;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+    private final long segmentBytes;
+    private final int maxBatch;
+    private final BlockingQueue<Object> queue;      // ExpiredDayRecord | FlushMarker | CLOSE
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long sequence;                          // records written so far
+    private long lastFsyncMs;
+    private boolean dirty;                          // written since the last fsync (writer only)
+    private volatile IOException failure;
+
+    public SegmentLog(Path dir, FsyncPolicy fsyncPolicy, long fsyncIntervalMs,
+                      long segmentBytes, int queueCapacity, int maxBatch) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.segmentBytes = Math.max(RECORD_BYTES, segmentBytes / RECORD_BYTES * RECORD_BYTES);
+        this.maxBatch = maxBatch;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.sequence = SegmentReader.countRecords(dir);
+        this.writer = new Thread(this::runLoop, "segment-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // ---------------- Producer side ----------------
+
+    /** Blocks only while the in-memory queue is full. */
+    public void append(ExpiredDayRecord record) throws InterruptedException {
+        enqueue(record);
+    }
+
+    /** Non-blocking; false means the writer is behind and the caller should shed or retry. */
+    public boolean tryAppend(ExpiredDayRecord record) {
+        checkFailure();
+        return queue.offer(record);
+    }
+
+    @Override
+    public void dump(UUID adUUID, LocalDate date, long impressions, long clicks) {
+        try {
+            append(new ExpiredDayRecord(adUUID, date.toEpochDay(), impressions, clicks));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Completes once everything appended before this call is written (and fsynced for EVERY_BATCH). */
+    public CompletableFuture<Void> flush() throws InterruptedException {
+        FlushMarker marker = new FlushMarker();
+        enqueue(marker);
+        return marker.done;
+    }
+
+    /**
+     * Drains, fsyncs and closes the log. Interrupted while waiting: the interrupt flag is restored
+     * and InterruptedIOException thrown (the writer keeps draining on its own).
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            checkFailure();
+            while (!queue.offer(CLOSE, RECHECK_MS, TimeUnit.MILLISECONDS)) checkFailure();
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing segment log");
+        }
+        checkFailure();
+    }
+
+    /**
+     * put() that gives up once the writer has failed. The writer drains the queue after setting
+     * failure, so anything that got in before is failed by it, and we re-check after getting in.
+     */
+    private void enqueue(Object o) throws InterruptedException {
+        checkFailure();
+        while (!queue.offer(o, RECHECK_MS, TimeUnit.MILLISECONDS)) checkFailure();
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        if (failure != null) throw new IllegalStateException("segment log writer failed", failure);
+    }
+
+    // ---------------- Background writer ----------------
+
+    private void runLoop() {
+        List<Object> batch = new ArrayList<>(maxBatch);
+        List<FlushMarker> markers = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocateDirect(maxBatch * RECORD_BYTES);
+        CRC32 crc = new CRC32();
+        boolean closing = false;
+
+        try {
+            while (!closing) {
+                Object first = nextItem();
+                if (first == null) {                    // INTERVAL: idle past the deadline
+                    fsync();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+
+                buf.clear();
+                for (Object o : batch) {
+                    if (o == CLOSE) {
+                        closing = true;
+                    } else if (o instanceof FlushMarker) {
+                        markers.add((FlushMarker) o);
+                    } else {
+                        encode((ExpiredDayRecord) o, buf, crc);
+                    }
+                }
+                buf.flip();
+                if (buf.hasRemaining()) dirty = true;
+                writeBatch(buf);
+
+                boolean force = fsyncPolicy == FsyncPolicy.EVERY_BATCH
+                        || (fsyncPolicy == FsyncPolicy.INTERVAL
+                            && System.currentTimeMillis() - lastFsyncMs >= fsyncIntervalMs)
+                        || closing;
+                if (force) fsync();
+                for (FlushMarker m : markers) m.done.complete(null);
+                markers.clear();
+                batch.clear();
+            }
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            fail(e, markers);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("segment log writer interrupted"), markers);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** take(), except with INTERVAL and unsynced data: wait only until the fsync is due (null = due). */
+    private Object nextItem() throws InterruptedException {
+        if (fsyncPolicy != FsyncPolicy.INTERVAL || !dirty) return queue.take();
+        long waitMs = lastFsyncMs + fsyncIntervalMs - System.currentTimeMillis();
+        return waitMs <= 0 ? queue.poll() : queue.poll(waitMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void fsync() throws IOException {
+        if (channel != null) channel.force(false);
+        lastFsyncMs = System.currentTimeMillis();
+        dirty = false;
+    }
+
+    private void fail(IOException e, List<FlushMarker> markers) {
+        failure = e;
+        for (FlushMarker m : markers) m.done.completeExceptionally(e);
+        List<Object> pending = new ArrayList<>();
+        queue.drainTo(pending);                    // queued records are lost like the failed batch
+        for (Object o : pending) {
+            if (o instanceof FlushMarker) ((FlushMarker) o).done.completeExceptionally(e);
+        }
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+    }
+
+    private static void encode(ExpiredDayRecord r, ByteBuffer buf, CRC32 crc) {
+        int start = buf.position();
+        buf.putLong(r.adUUID.getMostSignificantBits())
+           .putLong(r.adUUID.getLeastSignificantBits())
+           .putLong(r.epochDay)
+           .putLong(r.impressions)
+           .putLong(r.clicks);
+        crc.reset();
+        crc.update(buf.duplicate().position(start).limit(buf.position()));
+        buf.putInt((int) crc.getValue());
+    }
+
+    private void writeBatch(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel == null || channel.position() >= segmentBytes) rollSegment();
+            long room = segmentBytes - channel.position();
+            ByteBuffer slice = buf.duplicate();
+            slice.limit((int) Math.min(buf.limit(), buf.position() + room));
+            int n = 0;
+            while (slice.hasRemaining()) n += channel.write(slice);
+            buf.position(buf.position() + n);
+            sequence += n / RECORD_BYTES;
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        Path file = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // ---------------- Reader ----------------
+
+    static final class SegmentReader {
+
+        /** Scan all segments in order; emits records of adUUID with from <= date <= to. */
+        static void scan(Path dir, UUID adUUID, LocalDate from, LocalDate to,
+                         Consumer<ExpiredDayRecord> out) throws IOException {
+            long msb = adUUID.getMostSignificantBits();
+            long lsb = adUUID.getLeastSignificantBits();
+            long fromDay = from.toEpochDay();
+            long toDay = to.toEpochDay();
+            ByteBuffer buf = ByteBuffer.allocateDirect(4096 / RECORD_BYTES * RECORD_BYTES);
+            CRC32 crc = new CRC32();
+
+            for (Path segment : segments(dir)) {
+                try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                    buf.clear();
+                    boolean eof = false;
+                    while (!eof) {
+                        eof = ch.read(buf) < 0;
+                        buf.flip();
+                        // a torn tail (< RECORD_BYTES) of the active segment is left unread at eof
+                        while (buf.remaining() >= RECORD_BYTES) {
+                            int start = buf.position();
+                            long m = buf.getLong(), l = buf.getLong(), day = buf.getLong();
+                            long imp = buf.getLong(), clk = buf.getLong();
+                            crc.reset();
+                            crc.update(buf.duplicate().position(start).limit(buf.position()));
+                            if (buf.getInt() != (int) crc.getValue()) {
+                                throw new IOException("corrupt record in " + segment + " at " + start);
+                            }
+                            if (m == msb && l == lsb && day >= fromDay && day <= toDay) {
+                                out.accept(new ExpiredDayRecord(adUUID, day, imp, clk));
+                            }
+                        }
+                        buf.compact();
+                    }
+                }
+            }
+        }
+
+        static List<Path> segments(Path dir) throws IOException {
+            List<Path> files = new ArrayList<>();
+            if (!Files.isDirectory(dir)) return files;
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path p : ds) files.add(p);
+            }
+            Collections.sort(files);               // zero-padded first sequence -> name order == log order
+            return files;
+        }
+
+        static long countRecords(Path dir) throws IOException {
+            long total = 0;
+            for (Path p : segments(dir)) total += Files.size(p) / RECORD_BYTES;
+            return total;
+        }
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("adclick-segments");
+        UUID adA = UUID.randomUUID();
+        UUID adB = UUID.randomUUID();
+        LocalDate today = LocalDate.now();
+
+        try (SegmentLog log = new SegmentLog(dir, FsyncPolicy.EVERY_BATCH, 0, 10 * RECORD_BYTES, 1024, 256)) {
+            for (int d = 0; d < 40; d++) {
+                log.dump(adA, today.minusDays(d), d, 0);
+                log.dump(adB, today.minusDays(d), 0, d);
+            }
+            log.flush().join();
+        }
+
+        List<ExpiredDayRecord> found = new ArrayList<>();
+        SegmentReader.scan(dir, adA, today.minusDays(5), today.minusDays(3), found::add);
+        System.out.println("segments=" + SegmentReader.segments(dir).size() + ", adA days -5..-3: " + found);
+    }
+}
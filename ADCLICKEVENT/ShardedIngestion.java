@@ -0,0 +1,343 @@
+/*FOLLOW-UP: Sharded single-writer ingestion
+
+Problem with MultiThreadedAdClickSystem.consumeAdEvents under a hot ad:
+every event does seenStore.computeIfAbsent + set.add + eventStore.computeIfAbsent
++ skipList.computeIfAbsent. All of them CAS on the SAME cache lines when many
+ingest threads hit one popular ad.
+
+Idea: stop sharing per-ad state at all.
+
+hash(adUUID) % N -> shard
+each shard = 1 bounded queue + 1 writer thread
+the writer owns its ads' HashMap/TreeMap state (plain ints, no locks, no CAS)
+
+Producers group a call's events by shard and pay ONE enqueue per shard per call
+(a List<AdEvent>), not one per event: the queue lock is taken batch-many times, so
+producers hitting the same hot shard contend once per batch instead of once per event.
+The writer drains in batches (drainTo), so queue overhead is amortised on that side too
+and a hot ad's state stays hot in one core's cache.
+
+Reads (history / capped) and purge are also sent through the shard's queue,
+so the writer is the ONLY thread that ever touches shard state.
+Purged days go to an ExpiredDaySink first (same contract as dumpExpiredDataToPersistentStore),
+called on the shard's writer thread.
+
+Fail-fast: if the writer throws (or is interrupted) the shard records the failure, fails
+every queued read/purge, and every later call on it throws IllegalStateException with the
+cause. Producers never block forever on a dead shard: they offer with a timeout and
+re-check the failure (same scheme as SegmentLog).
+
+Sizing N: queueDepths() gives per-shard backlog in events. If one shard is always full
+while others are empty -> skew (one hot ad can only go as fast as one core);
+if all are full -> add shards.
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEvent;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventBucket;
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+import ParkingSpot.MultiThreadedAdClickSystem.SeenEvent;
+
+public class ShardedAdClickSystem {
+
+    static final int DEFAULT_QUEUE_CAPACITY = 4 * 1024;      // queue entries = producer batches / tasks
+    static final int DEFAULT_DRAIN_BATCH = 64;
+    private static final long RECHECK_MS = 50;
+
+    private final Shard[] shards;
+
+    public ShardedAdClickSystem(int shardCount) {
+        this(shardCount, DEFAULT_QUEUE_CAPACITY, DEFAULT_DRAIN_BATCH, ExpiredDaySink.PRINT);
+    }
+
+    public ShardedAdClickSystem(int shardCount, int queueCapacity, int drainBatch,
+                                ExpiredDaySink sink) {
+        if (shardCount <= 0) throw new IllegalArgumentException("shardCount must be > 0");
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueCapacity, drainBatch, sink);
+            shards[i].writer.start();
+        }
+    }
+
+    // ---------------- Public API ----------------
+
+    /**
+     * Group the events by shard, then one enqueue per shard. Blocks when that shard's queue
+     * is full (backpressure); throws IllegalStateException if the shard's writer has failed.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void consumeAdEvents(final List<AdEvent> events) throws InterruptedException {
+        List<AdEvent>[] byShard = new List[shards.length];
+        for (AdEvent e : events) {
+            int i = shardOf(e.adUUID);
+            if (byShard[i] == null) byShard[i] = new ArrayList<>();
+            byShard[i].add(e);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (byShard[i] != null) shards[i].enqueueEvents(byShard[i]);
+        }
+    }
+
+    public CompletableFuture<List<AdEventBucket>> getDailyAdEventHistory(final UUID adUUID) throws InterruptedException {
+        Shard s = shardFor(adUUID);
+        return s.submit(() -> s.history(adUUID));
+    }
+
+    public CompletableFuture<Boolean> isAdCappedAtDate(final UUID adUUID, final LocalDate date) throws InterruptedException {
+        Shard s = shardFor(adUUID);
+        return s.submit(() -> s.isCapped(adUUID, date));
+    }
+
+    /** Purge runs on every writer, in order with the events already queued before it. */
+    public CompletableFuture<Void> purgeOldData(LocalDate cutoffDateExclusive) throws InterruptedException {
+        CompletableFuture<?>[] all = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            Shard s = shards[i];
+            all[i] = s.submit(() -> { s.purge(cutoffDateExclusive); return null; });
+        }
+        return CompletableFuture.allOf(all);
+    }
+
+    /** Current backlog (queued events) of every shard; use it to size the shard count. */
+    public int[] queueDepths() {
+        int[] depths = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) depths[i] = shards[i].backlog.get();
+        return depths;
+    }
+
+    /** Drain what is queued, then stop the writers. A failed shard's writer is already done. */
+    public void shutdown() throws InterruptedException {
+        for (Shard s : shards) {
+            try {
+                s.enqueue(Shard.POISON);
+            } catch (IllegalStateException failed) {
+                // writer stopped on its own; nothing left to drain
+            }
+        }
+        for (Shard s : shards) s.writer.join();
+    }
+
+    // ---------------- Routing ----------------
+
+    int shardOf(UUID adUUID) {
+        // mix both halves; random UUIDs are already uniform, this also covers sequential ones
+        long h = adUUID.getMostSignificantBits() ^ adUUID.getLeastSignificantBits();
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return (int) Math.floorMod(h, (long) shards.length);
+    }
+
+    private Shard shardFor(UUID adUUID) {
+        return shards[shardOf(adUUID)];
+    }
+
+    // ---------------- Shard (single writer) ----------------
+
+    private static final class Shard {
+        static final Object POISON = new Object();
+
+        final BlockingQueue<Object> queue;   // List<AdEvent> | ShardTask | POISON
+        final AtomicInteger backlog = new AtomicInteger();      // queued events, for queueDepths()
+        final int drainBatch;
+        final ExpiredDaySink sink;
+        final Thread writer;
+        private volatile Throwable failure;
+
+        // owned by the writer thread only -> plain collections, plain ints
+        final Map<UUID, Set<SeenEvent>> seenStore = new HashMap<>();
+        final Map<UUID, TreeMap<LocalDate, int[]>> eventStore = new HashMap<>();
+
+        Shard(int id, int capacity, int drainBatch, ExpiredDaySink sink) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.drainBatch = drainBatch;
+            this.sink = sink;
+            this.writer = new Thread(this::runLoop, "ad-shard-" + id);
+            this.writer.setDaemon(true);
+        }
+
+        <R> CompletableFuture<R> submit(Callable<R> work) throws InterruptedException {
+            ShardTask<R> task = new ShardTask<>(work);
+            enqueue(task);
+            return task.result;
+        }
+
+        void enqueueEvents(List<AdEvent> events) throws InterruptedException {
+            backlog.addAndGet(events.size());
+            try {
+                enqueue(events);
+            } catch (InterruptedException | RuntimeException e) {
+                backlog.addAndGet(-events.size());
+                throw e;
+            }
+        }
+
+        /**
+         * put() that gives up once the writer has failed. The writer drains the queue after setting
+         * failure, so anything that got in before is failed by it, and we re-check after getting in.
+         */
+        void enqueue(Object o) throws InterruptedException {
+            checkFailure();
+            while (!queue.offer(o, RECHECK_MS, TimeUnit.MILLISECONDS)) checkFailure();
+            checkFailure();
+        }
+
+        private void checkFailure() {
+            if (failure != null) throw new IllegalStateException("shard writer " + writer.getName() + " failed", failure);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void runLoop() {
+            List<Object> batch = new ArrayList<>(drainBatch);
+            try {
+                while (true) {
+                    batch.add(queue.take());          // park until there is work
+                    queue.drainTo(batch, drainBatch - 1);
+
+                    for (Object o : batch) {
+                        if (o == POISON) return;
+                        if (o instanceof ShardTask) {
+                            ((ShardTask<?>) o).run();
+                        } else {
+                            List<AdEvent> events = (List<AdEvent>) o;
+                            for (AdEvent e : events) apply(e);
+                            backlog.addAndGet(-events.size());
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                fail(ie, batch);
+            } catch (RuntimeException | Error e) {
+                fail(e, batch);
+                if (e instanceof Error) throw (Error) e;
+            }
+        }
+
+        /** Writer is done: remember why, fail every read/purge still queued, drop queued events. */
+        private void fail(Throwable cause, List<Object> inHand) {
+            failure = cause;
+            List<Object> pending = new ArrayList<>(inHand);
+            queue.drainTo(pending);
+            for (Object o : pending) {
+                if (o instanceof ShardTask) ((ShardTask<?>) o).result.completeExceptionally(cause);
+            }
+            backlog.set(0);
+        }
+
+        private void apply(AdEvent e) {
+            Set<SeenEvent> seen = seenStore.computeIfAbsent(e.adUUID, k -> new HashSet<>());
+            if (!seen.add(new SeenEvent(e.timestamp, e.type))) return;
+
+            int[] dc = eventStore.computeIfAbsent(e.adUUID, k -> new TreeMap<>())
+                    .computeIfAbsent(e.timestamp.toLocalDate(), d -> new int[2]);
+            if (e.type == AdEventType.IMPRESSION) dc[0]++;
+            else dc[1]++;
+        }
+
+        List<AdEventBucket> history(UUID adUUID) {
+            TreeMap<LocalDate, int[]> history = eventStore.get(adUUID);
+            if (history == null) {
+                throw new IllegalArgumentException("No data for adUUID: " + adUUID);
+            }
+            List<AdEventBucket> result = new ArrayList<>(history.size());
+            for (Map.Entry<LocalDate, int[]> e : history.entrySet()) {
+                result.add(new AdEventBucket(e.getKey(), e.getValue()[0], e.getValue()[1]));
+            }
+            return result;
+        }
+
+        boolean isCapped(UUID adUUID, LocalDate date) {
+            TreeMap<LocalDate, int[]> history = eventStore.get(adUUID);
+            if (history == null) {
+                throw new IllegalArgumentException("No data for adUUID: " + adUUID);
+            }
+            LocalDate start = date.minusDays(MultiThreadedAdClickSystem.ROLLING_WINDOW_LENGTH_DAYS - 1);
+            int impressions = 0;
+            int clicks = 0;
+            for (int[] dc : history.subMap(start, true, date, true).values()) {
+                impressions += dc[0];
+                clicks += dc[1];
+            }
+            return impressions >= MultiThreadedAdClickSystem.IMPRESSION_LIMIT && clicks == 0;
+        }
+
+        void purge(LocalDate cutoffDateExclusive) {
+            Iterator<Map.Entry<UUID, TreeMap<LocalDate, int[]>>> it = eventStore.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<UUID, TreeMap<LocalDate, int[]>> entry = it.next();
+                TreeMap<LocalDate, int[]> history = entry.getValue();
+                NavigableMap<LocalDate, int[]> expired = history.headMap(cutoffDateExclusive, false);
+                // dump first, then drop (dumpExpiredDataToPersistentStore order)
+                for (Map.Entry<LocalDate, int[]> day : expired.entrySet()) {
+                    sink.dump(entry.getKey(), day.getKey(), day.getValue()[0], day.getValue()[1]);
+                }
+                expired.clear();
+                if (history.isEmpty()) {
+                    seenStore.remove(entry.getKey());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static final class ShardTask<R> {
+        final Callable<R> work;
+        final CompletableFuture<R> result = new CompletableFuture<>();
+
+        ShardTask(Callable<R> work) {
+            this.work = work;
+        }
+
+        void run() {
+            try {
+                result.complete(work.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) throws Exception {
+        ShardedAdClickSystem svc = new ShardedAdClickSystem(4);
+        UUID ad = UUID.randomUUID();
+
+        List<AdEvent> batch = new ArrayList<>();
+        java.time.LocalDateTime now = java.time.LocalDateTime.now();
+        for (int i = 0; i < 6; i++) {
+            batch.add(new AdEvent(ad, now.minusMinutes(i), AdEventType.IMPRESSION));
+        }
+        batch.add(new AdEvent(ad, now.minusDays(40), AdEventType.CLICK));
+
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 8; i++) {
+            producers.submit(() -> { svc.consumeAdEvents(batch); return null; }); // duplicates are dropped
+        }
+        producers.shutdown();
+        producers.awaitTermination(5, TimeUnit.SECONDS);
+
+        System.out.println("History: " + svc.getDailyAdEventHistory(ad).get());
+        System.out.println("Capped today? " + svc.isAdCappedAtDate(ad, LocalDate.now()).get());
+        System.out.println("Queue depths: " + Arrays.toString(svc.queueDepths()));
+        svc.purgeOldData(LocalDate.now().minusDays(MultiThreadedAdClickSystem.RETENTION_DAYS)).get();  // dumps the 40-day-old click
+
+        // a writer that throws fails its shard: queued reads complete exceptionally, later calls throw
+        // (the enqueue itself may already see the failure: it re-checks after getting into the queue)
+        try {
+            svc.consumeAdEvents(List.of(new AdEvent(ad, null, AdEventType.IMPRESSION)));
+            svc.getDailyAdEventHistory(ad).get();
+        } catch (ExecutionException | IllegalStateException failed) {
+            System.out.println("Shard failed: " + failed);
+        }
+        svc.shutdown();
+    }
+}
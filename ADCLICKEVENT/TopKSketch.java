@@ -0,0 +1,430 @@
+/*FOLLOW-UP: "Top K ads today" from bounded memory
+
+Exact answer = walk every ad's skip list in eventStore -> O(#ads) per query.
+Approximate answer with known error, updated during ingestion:
+
+Per day, per metric (impressions / clicks):
+
+1) Count-Min sketch  d rows x w columns of counters
+   estimate(ad) = min over rows of row[h_i(ad)]
+   never under-counts; over-counts by <= eps * N with prob >= 1 - delta
+   eps = e / w, delta = e^-d                               (N = events that day)
+
+2) Space-Saving with m counters (Metwally et al.)
+   ad tracked     -> count++
+   free counter   -> track it with count 1
+   full           -> evict the min counter c, new ad gets count c+1, error = c
+   every ad with true count > N/m is guaranteed to be tracked
+   true count in [count - error, count]
+
+Top-K query = sort the Space-Saving counters, tighten each upper bound with the
+Count-Min estimate, and say whether the K reported ads are GUARANTEED to be the
+true top K (every reported lower bound >= the (K+1)th upper bound).
+
+Space-Saving needs a lock; it is striped by hash(ad) so each ad lives in exactly
+one stripe (union of stripes = exact merge). Count-Min is lock-free AtomicLongArray adds.
+Default 64 stripes * 128 counters: same 8192 counters (and the same N/8192 guarantee, as each
+stripe sees ~N/64 events) as 8 * 1024, but 8x fewer ingest threads meet on one monitor.
+A counter is primitive (ad msb/lsb, count, error, heap slot + a 2x int index): no UUID,
+Integer or HashMap node is created or retained per offer.
+
+Memory per day = 2 metrics * (d*w longs + stripes*m counters) -> fixed:
+  Count-Min 4 * 2048 * 8 B = 64 KB, Space-Saving 8192 * (4 longs + 3 ints) = ~360 KB
+  -> ~850 KB per day, ~26 MB for 30 days (UUID[] + HashMap<UUID,Integer> was ~1.7 MB per day).
+
+Fed by MultiThreadedAdClickSystem.consumeAdEvents after the dedupe check (getTopAds there),
+and purged together with its eventStore.
+
+Partition handoff moves an ad's exact day counts (AdState.days), and both structures are
+linear in them: removeAd subtracts them from the Count-Min rows and drops the ad's
+Space-Saving counter, addAd adds them on the new owner. A dropped counter raises the
+stripe's floor (the min it had), so untracked ads keep a valid upper bound and a later
+newcomer in the freed counter gets that floor as its error.
+
+Java Code*/
+package ParkingSpot;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import ParkingSpot.MultiThreadedAdClickSystem.AdEventType;
+
+public class HeavyHitterTracker {
+
+    enum Metric { IMPRESSIONS, CLICKS }
+
+    static final class AdCount {
+        final UUID adUUID;
+        final long estimate;      // Space-Saving count (upper bound)
+        final long lowerBound;    // count - error
+        final long upperBound;    // min(Space-Saving, Count-Min)
+
+        AdCount(UUID adUUID, long estimate, long lowerBound, long upperBound) {
+            this.adUUID = adUUID;
+            this.estimate = estimate;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        @Override
+        public String toString() {
+            return adUUID + " ~" + estimate + " [" + lowerBound + ", " + upperBound + "]";
+        }
+    }
+
+    static final class TopAds {
+        final LocalDate date;
+        final Metric metric;
+        final List<AdCount> ads;
+        final long totalEvents;        // N
+        final long maxMissedCount;     // an untracked ad has at most this count (min counter of a full stripe)
+        final double cmsEpsilon;
+        final double cmsDelta;
+        final boolean exactTopK;       // set of ads is guaranteed correct
+
+        TopAds(LocalDate date, Metric metric, List<AdCount> ads, long totalEvents, long maxMissedCount,
+               double cmsEpsilon, double cmsDelta, boolean exactTopK) {
+            this.date = date;
+            this.metric = metric;
+            this.ads = ads;
+            this.totalEvents = totalEvents;
+            this.maxMissedCount = maxMissedCount;
+            this.cmsEpsilon = cmsEpsilon;
+            this.cmsDelta = cmsDelta;
+            this.exactTopK = exactTopK;
+        }
+
+        @Override
+        public String toString() {
+            return date + " " + metric + " N=" + totalEvents + " exactTopK=" + exactTopK
+                    + " cms(eps=" + String.format("%.5f", cmsEpsilon) + ", delta=" + String.format("%.4f", cmsDelta)
+                    + ") untracked<=" + maxMissedCount + " " + ads;
+        }
+    }
+
+    private final int cmsDepth;
+    private final int cmsWidth;
+    private final int counters;
+    private final int stripes;
+    private final ConcurrentSkipListMap<Long, DaySketch[]> days = new ConcurrentSkipListMap<>();
+
+    public HeavyHitterTracker() {
+        this(4, 2048, 128, 64);
+    }
+
+    public HeavyHitterTracker(int cmsDepth, int cmsWidth, int countersPerStripe, int stripes) {
+        this.cmsDepth = cmsDepth;
+        this.cmsWidth = cmsWidth;
+        this.counters = countersPerStripe;
+        this.stripes = stripes;
+    }
+
+    // ---------------- Write side ----------------
+
+    /** Call once per NEW (already deduplicated) event. */
+    public void onEvent(UUID adUUID, LocalDate date, AdEventType type) {
+        long day = date.toEpochDay();
+        DaySketch[] perMetric = days.get(day);
+        if (perMetric == null) {
+            perMetric = days.computeIfAbsent(day, d -> new DaySketch[] { new DaySketch(), new DaySketch() });
+        }
+        perMetric[type == AdEventType.IMPRESSION ? 0 : 1].add(adUUID);
+    }
+
+    /** Hand-off in: add an ad's exact per-day counts (date -> {impressions, clicks}). */
+    public void addAd(UUID adUUID, Map<LocalDate, long[]> dayCounts) {
+        for (Map.Entry<LocalDate, long[]> e : dayCounts.entrySet()) {
+            long day = e.getKey().toEpochDay();
+            DaySketch[] perMetric = days.computeIfAbsent(day, d -> new DaySketch[] { new DaySketch(), new DaySketch() });
+            for (int m = 0; m < 2; m++) {
+                if (e.getValue()[m] > 0) perMetric[m].add(adUUID, e.getValue()[m]);
+            }
+        }
+    }
+
+    /** Hand-off out: subtract the ad's exact per-day counts it was fed with and stop tracking it. */
+    public void removeAd(UUID adUUID, Map<LocalDate, long[]> dayCounts) {
+        for (Map.Entry<LocalDate, long[]> e : dayCounts.entrySet()) {
+            DaySketch[] perMetric = days.get(e.getKey().toEpochDay());
+            if (perMetric == null) continue;                 // day already purged here
+            for (int m = 0; m < 2; m++) perMetric[m].remove(adUUID, e.getValue()[m]);
+        }
+    }
+
+    /** Drop sketches of days that left retention. */
+    public void purgeBefore(LocalDate cutoffDateExclusive) {
+        days.headMap(cutoffDateExclusive.toEpochDay(), false).clear();
+    }
+
+    // ---------------- Read side ----------------
+
+    public TopAds getTopAds(LocalDate date, int k, Metric metric) {
+        DaySketch[] perMetric = days.get(date.toEpochDay());
+        double eps = Math.E / cmsWidth;
+        double delta = Math.exp(-cmsDepth);
+        if (perMetric == null) return new TopAds(date, metric, List.of(), 0, 0, eps, delta, true);
+        return perMetric[metric.ordinal()].top(date, metric, k, eps, delta);
+    }
+
+    // ---------------- Per day / metric ----------------
+
+    static long hash(long msb, long lsb) {
+        return BoundedDedupeStore.mix64(msb ^ lsb);
+    }
+
+    private final class DaySketch {
+        final AtomicLongArray cms = new AtomicLongArray(cmsDepth * cmsWidth);
+        final SpaceSaving[] summaries = new SpaceSaving[stripes];
+        final LongAdder total = new LongAdder();
+
+        DaySketch() {
+            for (int i = 0; i < stripes; i++) summaries[i] = new SpaceSaving(counters);
+        }
+
+        void add(UUID ad) {
+            add(ad, 1);
+        }
+
+        void add(UUID ad, long n) {
+            long msb = ad.getMostSignificantBits(), lsb = ad.getLeastSignificantBits();
+            long h = hash(msb, lsb);
+            for (int r = 0; r < cmsDepth; r++) cms.getAndAdd(r * cmsWidth + column(h, r), n);
+            total.add(n);
+            SpaceSaving s = summaries[stripeOf(h)];
+            synchronized (s) {
+                s.offer(msb, lsb, h, n);
+            }
+        }
+
+        void remove(UUID ad, long n) {
+            long msb = ad.getMostSignificantBits(), lsb = ad.getLeastSignificantBits();
+            long h = hash(msb, lsb);
+            if (n > 0) {
+                for (int r = 0; r < cmsDepth; r++) cms.getAndAdd(r * cmsWidth + column(h, r), -n);
+                total.add(-n);
+            }
+            SpaceSaving s = summaries[stripeOf(h)];
+            synchronized (s) {
+                s.remove(msb, lsb, h);
+            }
+        }
+
+        private int stripeOf(long h) {
+            return (int) Math.floorMod(h >>> 40, (long) stripes);
+        }
+
+        long cmsEstimate(long h) {
+            long min = Long.MAX_VALUE;
+            for (int r = 0; r < cmsDepth; r++) min = Math.min(min, cms.get(r * cmsWidth + column(h, r)));
+            return min;
+        }
+
+        private int column(long h, int row) {
+            // double hashing: h1 + row * h2
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32) | 1;
+            return Math.floorMod(h1 + row * h2, cmsWidth);
+        }
+
+        TopAds top(LocalDate date, Metric metric, int k, double eps, double delta) {
+            List<AdCount> all = new ArrayList<>();
+            long maxMissed = 0;
+            for (SpaceSaving s : summaries) {
+                synchronized (s) {
+                    maxMissed = Math.max(maxMissed, Math.max(s.floor, s.size == s.capacity ? s.minCount() : 0));
+                    for (int i = 0; i < s.size; i++) {
+                        long upper = Math.min(s.count[i], cmsEstimate(hash(s.msb[i], s.lsb[i])));
+                        all.add(new AdCount(s.adAt(i), s.count[i], s.count[i] - s.error[i], upper));
+                    }
+                }
+            }
+            all.sort((a, b) -> Long.compare(b.estimate, a.estimate));
+            List<AdCount> top = new ArrayList<>(all.subList(0, Math.min(k, all.size())));
+
+            // guaranteed iff every reported ad beats anything not reported (tracked or not)
+            long bestOutside = maxMissed;
+            for (int i = top.size(); i < all.size(); i++) bestOutside = Math.max(bestOutside, all.get(i).upperBound);
+            boolean exact = true;
+            for (AdCount c : top) exact &= c.lowerBound >= bestOutside;
+
+            return new TopAds(date, metric, top, total.sum(), maxMissed, eps, delta, exact);
+        }
+    }
+
+    /**
+     * Space-Saving with an indexed min-heap over the counters: O(log m) per offer.
+     * All primitive: an ad is its two UUID longs, and the ad -> heap position map is an
+     * open-addressing int table (position + 1, 0 = empty), so an offer allocates nothing.
+     */
+    static final class SpaceSaving {
+        final int capacity;
+        final long[] msb;
+        final long[] lsb;
+        final long[] count;
+        final long[] error;
+        private final int[] slotOf;           // heap position -> its slot in index
+        private final int[] index;            // hash(ad) -> heap position + 1
+        private final int mask;
+        int size;
+        long floor;               // highest min of a full summary a counter was removed from
+
+        SpaceSaving(int capacity) {
+            this.capacity = capacity;
+            this.msb = new long[capacity];
+            this.lsb = new long[capacity];
+            this.count = new long[capacity];
+            this.error = new long[capacity];
+            this.slotOf = new int[capacity];
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2) - 1) << 1;   // load <= 0.5
+            this.index = new int[tableSize];
+            this.mask = tableSize - 1;
+        }
+
+        long minCount() {
+            return size == 0 ? 0 : count[0];
+        }
+
+        UUID adAt(int pos) {
+            return new UUID(msb[pos], lsb[pos]);
+        }
+
+        /** @param h hash of the ad (HeavyHitterTracker.hash), the same one for every call about it. */
+        void offer(long adMsb, long adLsb, long h, long n) {
+            int slot = find(adMsb, adLsb, h);
+            if (index[slot] != 0) {
+                int pos = index[slot] - 1;
+                count[pos] += n;
+                siftDown(pos);
+                return;
+            }
+            if (size < capacity) {
+                // free counter: the ad may have been evicted before a removal freed it -> floor as error
+                int pos = size++;
+                msb[pos] = adMsb;
+                lsb[pos] = adLsb;
+                count[pos] = floor + n;
+                error[pos] = floor;
+                index[slot] = pos + 1;
+                slotOf[pos] = slot;
+                siftUp(pos);
+                return;
+            }
+            // evict the minimum (heap root); the new ad inherits its count as error
+            unindex(0);
+            slot = find(adMsb, adLsb, h);             // the backward shift may have moved the free slot
+            msb[0] = adMsb;
+            lsb[0] = adLsb;
+            error[0] = count[0];
+            count[0] += n;
+            index[slot] = 1;
+            slotOf[0] = slot;
+            siftDown(0);
+        }
+
+        void remove(long adMsb, long adLsb, long h) {
+            int slot = find(adMsb, adLsb, h);
+            if (index[slot] == 0) return;
+            int pos = index[slot] - 1;
+            if (size == capacity) floor = Math.max(floor, count[0]);
+            unindex(pos);
+            int last = --size;
+            if (pos != last) {
+                msb[pos] = msb[last];
+                lsb[pos] = lsb[last];
+                count[pos] = count[last];
+                error[pos] = error[last];
+                slotOf[pos] = slotOf[last];
+                index[slotOf[pos]] = pos + 1;
+                siftUp(pos);
+                siftDown(pos);
+            }
+        }
+
+        /** Slot holding the ad, or the empty slot where it would go. */
+        private int find(long adMsb, long adLsb, long h) {
+            int i = (int) h & mask;
+            while (index[i] != 0) {
+                int pos = index[i] - 1;
+                if (msb[pos] == adMsb && lsb[pos] == adLsb) return i;
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /** Backward-shift delete of position pos from index; entries moved up get their slotOf fixed. */
+        private void unindex(int pos) {
+            int gap = slotOf[pos];
+            for (int j = (gap + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+                int moved = index[j] - 1;
+                int home = (int) hash(msb[moved], lsb[moved]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    index[gap] = index[j];
+                    slotOf[moved] = gap;
+                    gap = j;
+                }
+            }
+            index[gap] = 0;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int p = (i - 1) / 2;
+                if (count[p] <= count[i]) break;
+                swap(i, p);
+                i = p;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int l = 2 * i + 1, r = l + 1, m = i;
+                if (l < size && count[l] < count[m]) m = l;
+                if (r < size && count[r] < count[m]) m = r;
+                if (m == i) return;
+                swap(i, m);
+                i = m;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long t;
+            t = msb[a]; msb[a] = msb[b]; msb[b] = t;
+            t = lsb[a]; lsb[a] = lsb[b]; lsb[b] = t;
+            t = count[a]; count[a] = count[b]; count[b] = t;
+            t = error[a]; error[a] = error[b]; error[b] = t;
+            int slot = slotOf[a]; slotOf[a] = slotOf[b]; slotOf[b] = slot;
+            index[slotOf[a]] = a + 1;
+            index[slotOf[b]] = b + 1;
+        }
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) {
+        HeavyHitterTracker tracker = new HeavyHitterTracker(4, 2048, 64, 4);
+        LocalDate today = LocalDate.now();
+        UUID[] ads = new UUID[5_000];
+        for (int i = 0; i < ads.length; i++) ads[i] = UUID.randomUUID();
+
+        // Zipf-ish: ad i gets ~ 100000 / (i + 1) impressions
+        Map<UUID, Long> exact = new HashMap<>();
+        for (int i = 0; i < ads.length; i++) {
+            long n = 100_000L / (i + 1);
+            for (long j = 0; j < n; j++) tracker.onEvent(ads[i], today, AdEventType.IMPRESSION);
+            exact.put(ads[i], n);
+        }
+
+        TopAds top = null;
+        long ns = 0;
+        for (int i = 0; i < 10_000; i++) {          // warm up, then time the last query
+            long t0 = System.nanoTime();
+            top = tracker.getTopAds(today, 5, Metric.IMPRESSIONS);
+            ns = System.nanoTime() - t0;
+        }
+        System.out.println("query us=" + ns / 1000);
+        System.out.println(top);
+        for (AdCount c : top.ads) System.out.println("  true=" + exact.get(c.adUUID) + " reported=" + c);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+Adaptive concurrency limit for asyncMapStream
+
+maxFuturesInFlight is a guess: too high -> downstream queues / errors, too low -> idle.
+Instead let a Limit decide, fed by every completion (latency, in-flight at start, error):
+
+  AimdLimit      : success and the limit was actually used  -> limit + 1/limit
+                                                                 (~limit samples per round trip = +1 per RTT)
+                   error or latency > timeout                 -> limit * backoff
+  GradientLimit  : Little's law view. longRtt = slow EMA of latency (the "no queue" rtt),
+                   gradient = clamp(longRtt / rtt, 0.5, 1)   (< 1 means a queue is building)
+                   target   = limit * gradient + sqrt(limit)  (headroom to probe for more)
+                   limit    = moves toward target by `smoothing` per round trip
+                   error    -> limit / 2
+                   only grows while the stream actually uses >= half the limit
+
+Errors / timeouts back off at most once per round trip: a sample that started before
+the last backoff belongs to the same overload and is ignored.
+
+Both clamp to [minLimit, maxLimit] and expose currentLimit() as a gauge.
+
+Scheduling is the lock-free drain loop of LockFreeEagerAsyncMap with the static max
+replaced by limit.currentLimit(); a completion re-runs the drain, so a raised limit is
+picked up immediately. Limit updates are a few arithmetic ops under the Limit's monitor.
+*/
+package ParkingSpot;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+public class AdaptiveAsyncMap {
+
+    // ---------------- Limits ----------------
+
+    public interface Limit {
+        int currentLimit();
+
+        /** One completed call: latency, how many were in flight when it started, whether it failed. */
+        void onSample(long rttNanos, int inFlight, boolean failed);
+
+        default IntSupplier gauge() {
+            return this::currentLimit;
+        }
+    }
+
+    static final class AimdLimit implements Limit {
+        private final int minLimit;
+        private final int maxLimit;
+        private final double backoff;
+        private final long timeoutNanos;
+        private long lastBackoffNanos = Long.MIN_VALUE;
+        private double estimate;
+        private volatile int limit;
+
+        AimdLimit(int initial, int minLimit, int maxLimit, double backoff, long timeoutNanos) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.backoff = backoff;
+            this.timeoutNanos = timeoutNanos;
+            this.estimate = Math.max(minLimit, Math.min(maxLimit, initial));
+            this.limit = (int) estimate;
+        }
+
+        @Override
+        public int currentLimit() {
+            return limit;
+        }
+
+        @Override
+        public synchronized void onSample(long rttNanos, int inFlight, boolean failed) {
+            if (failed || rttNanos > timeoutNanos) {
+                long now = System.nanoTime();
+                if (now - rttNanos < lastBackoffNanos) return;     // started before the last backoff: same overload
+                lastBackoffNanos = now;
+                estimate = Math.max(minLimit, estimate * backoff);
+            } else if (inFlight * 2 >= estimate) {       // don't grow a limit nobody is using
+                estimate = Math.min(maxLimit, estimate + 1 / estimate);
+            }
+            limit = (int) estimate;
+        }
+    }
+
+    static final class GradientLimit implements Limit {
+        private final int minLimit;
+        private final int maxLimit;
+        private final double smoothing;
+        private final double longWindow;
+        private double estimate;
+        private double longRtt;
+        private long lastBackoffNanos = Long.MIN_VALUE;
+        private volatile int limit;
+
+        GradientLimit(int initial, int minLimit, int maxLimit) {
+            this(initial, minLimit, maxLimit, 0.2, 600);
+        }
+
+        GradientLimit(int initial, int minLimit, int maxLimit, double smoothing, int longWindowSamples) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.smoothing = smoothing;
+            this.longWindow = longWindowSamples;
+            this.estimate = Math.max(minLimit, Math.min(maxLimit, initial));
+            this.limit = (int) estimate;
+        }
+
+        @Override
+        public int currentLimit() {
+            return limit;
+        }
+
+        @Override
+        public synchronized void onSample(long rttNanos, int inFlight, boolean failed) {
+            double rtt = Math.max(1, rttNanos);
+            longRtt = longRtt == 0 ? rtt : longRtt + (rtt - longRtt) / longWindow;
+            if (longRtt / rtt > 2) longRtt *= 0.95;             // recovered from a slow period: forget faster
+
+            if (failed) {
+                long now = System.nanoTime();
+                if (now - rttNanos < lastBackoffNanos) return;     // same overload as the last backoff
+                lastBackoffNanos = now;
+                estimate = Math.max(minLimit, estimate * 0.5);
+                limit = (int) estimate;
+                return;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0, longRtt / rtt));
+            if (gradient == 1.0 && inFlight * 2 < estimate) return;   // app-limited: no signal to grow on
+
+            // ~estimate samples arrive per round trip, so step 1/estimate of the way each time
+            double target = estimate * gradient + Math.sqrt(estimate);
+            estimate += (target - estimate) * smoothing / estimate;
+            estimate = Math.max(minLimit, Math.min(maxLimit, estimate));
+            limit = (int) estimate;
+        }
+    }
+
+    // ---------------- asyncMapStream with a Limit ----------------
+
+    public static <T, U> Iterator<CompletableFuture<U>> asyncMapStream(
+            Iterator<T> upstream,
+            Function<T, CompletableFuture<U>> mapper,
+            Limit limit) {
+        Stream<T, U> s = new Stream<>(upstream, mapper, limit);
+        s.drain();
+        return s;
+    }
+
+    private static final class Stream<T, U> implements Iterator<CompletableFuture<U>> {
+        private final Iterator<T> upstream;
+        private final Function<T, CompletableFuture<U>> mapper;
+        private final Limit limit;
+
+        private final ConcurrentLinkedQueue<CompletableFuture<U>> readyQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean upstreamExhausted;
+        private volatile Thread consumer;
+
+        Stream(Iterator<T> upstream, Function<T, CompletableFuture<U>> mapper, Limit limit) {
+            this.upstream = upstream;
+            this.mapper = mapper;
+            this.limit = limit;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                launchWhilePermits();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void launchWhilePermits() {
+            while (!upstreamExhausted && inFlight.get() < limit.currentLimit()) {
+                T item;
+                try {
+                    if (!upstream.hasNext()) {
+                        upstreamExhausted = true;
+                        wakeConsumer();
+                        return;
+                    }
+                    item = upstream.next();
+                } catch (RuntimeException e) {
+                    inFlight.incrementAndGet();
+                    onComplete(CompletableFuture.failedFuture(e));
+                    upstreamExhausted = true;
+                    wakeConsumer();
+                    return;
+                }
+
+                int started = inFlight.incrementAndGet();
+                long t0 = System.nanoTime();
+                CompletableFuture<U> fut;
+                try {
+                    fut = mapper.apply(item);
+                } catch (RuntimeException e) {
+                    fut = CompletableFuture.failedFuture(e);
+                }
+                CompletableFuture<U> f = fut;
+                f.whenComplete((val, ex) -> {
+                    limit.onSample(System.nanoTime() - t0, started, ex != null);
+                    onComplete(f);
+                });
+            }
+        }
+
+        private void onComplete(CompletableFuture<U> fut) {
+            readyQueue.offer(fut);
+            inFlight.decrementAndGet();
+            wakeConsumer();
+            drain();
+        }
+
+        private void wakeConsumer() {
+            Thread t = consumer;
+            if (t != null) LockSupport.unpark(t);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (true) {
+                if (!readyQueue.isEmpty()) return true;
+                if (upstreamExhausted && inFlight.get() == 0 && readyQueue.isEmpty()) return false;
+
+                consumer = Thread.currentThread();
+                if (readyQueue.isEmpty() && !(upstreamExhausted && inFlight.get() == 0)) {
+                    LockSupport.park(this);
+                }
+                consumer = null;
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(new InterruptedException());
+                }
+            }
+        }
+
+        @Override
+        public CompletableFuture<U> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return readyQueue.poll();
+        }
+    }
+
+    // ---------------- Demo: downstream with 50 slots, queues beyond, fails beyond 150 ----------------
+    public static void main(String[] args) {
+        ScheduledExecutorService server = Executors.newScheduledThreadPool(2);
+        int capacity = 50;
+        long baseMillis = 5;
+        AtomicInteger serverLoad = new AtomicInteger();
+        AtomicLong errors = new AtomicLong();
+
+        Function<Integer, CompletableFuture<Integer>> call = i -> {
+            CompletableFuture<Integer> f = new CompletableFuture<>();
+            int load = serverLoad.incrementAndGet();
+            long delay = baseMillis * Math.max(1, load / capacity) + ThreadLocalRandom.current().nextInt(2);
+            server.schedule(() -> {
+                serverLoad.decrementAndGet();
+                if (load > 3 * capacity) {
+                    errors.incrementAndGet();
+                    f.completeExceptionally(new IllegalStateException("overloaded"));
+                } else {
+                    f.complete(i);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return f;
+        };
+
+        Limit[] limits = {
+                new AimdLimit(10, 1, 1000, 0.9, TimeUnit.MILLISECONDS.toNanos(2 * baseMillis)),
+                new GradientLimit(10, 1, 1000)
+        };
+        for (Limit limit : limits) {
+            errors.set(0);
+            int n = 50_000;
+            long t0 = System.nanoTime();
+            Iterator<CompletableFuture<Integer>> it = asyncMapStream(new Range(n), call, limit);
+            int done = 0;
+            while (it.hasNext()) {
+                it.next();
+                if (++done % 10_000 == 0) System.out.printf("  %-13s after %,d: limit=%d%n",
+                        limit.getClass().getSimpleName(), done, limit.gauge().getAsInt());
+            }
+            long ms = (System.nanoTime() - t0) / 1_000_000;
+            System.out.printf("%-13s %,d calls in %d ms (%,d/s), errors=%d, final limit=%d%n",
+                    limit.getClass().getSimpleName(), n, ms, n * 1000L / Math.max(1, ms), errors.get(), limit.currentLimit());
+        }
+        server.shutdown();
+    }
+
+    private static final class Range implements Iterator<Integer> {
+        private final int n;
+        private int i;
+
+        Range(int n) {
+            this.n = n;
+        }
+
+        @Override public boolean hasNext() { return i < n; }
+
+        @Override public Integer next() { return i++; }
+    }
+}
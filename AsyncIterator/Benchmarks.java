@@ -0,0 +1,109 @@
+/*
+JMH for eager vs non-eager asyncMapStream
+
+Same implementations and latency models as AsyncMapLoadTest. JMH gives the statistically
+sound throughput number (+ bytes per element with -prof gc); the latency percentiles,
+queue wait and in-flight utilisation come from AsyncMapLoadTest.run.
+
+Percentiles are not additive, so they are not AuxCounters: JMH sums EVENTS counters over
+every invocation of an iteration (a p99 would come out as p99 * runs, a utilisation > 100%).
+Every run of an iteration records into the same two histograms instead, and @TearDown prints
+the merged p50/p99/p99.9 and the wall-time weighted utilisation once per iteration.
+Only the run count, which does add up, is an AuxCounter.
+
+  one op = one element (@OperationsPerInvocation = ELEMENTS)
+
+Build / run (JMH 1.37 jars + annotation processor on the classpath, no build file in this repo;
+Impl / LatencyModel are public so the generated jmh_generated classes can bind the @Params):
+  javac -cp jmh-core.jar:jmh-generator-annprocess.jar -d out AsyncIterator/*.java
+  java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar org.openjdk.jmh.Main AsyncMapBenchmarks -prof gc
+*/
+package ParkingSpot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AsyncMapBenchmarks {
+
+    static final int ELEMENTS = 2_000;
+
+    @State(Scope.Benchmark)
+    public static class Config {
+        @Param({ "NON_EAGER", "EAGER", "LOCK_FREE_EAGER" })
+        AsyncMapLoadTest.Impl impl;
+
+        @Param({ "CONSTANT", "LOGNORMAL", "BIMODAL" })
+        AsyncMapLoadTest.LatencyModel model;
+
+        @Param({ "16", "64", "256" })
+        int maxInFlight;
+
+        ScheduledExecutorService timer;
+
+        @Setup(Level.Trial)
+        public void start() {
+            timer = Executors.newScheduledThreadPool(2);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            timer.shutdown();
+        }
+    }
+
+    /** Additive per-iteration count, shown as a secondary result. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class RunCount {
+        public long streamRuns;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            streamRuns = 0;
+        }
+    }
+
+    /** Latency of every run in the iteration, merged; printed once when the iteration ends. */
+    @State(Scope.Thread)
+    public static class StreamMetrics {
+        AsyncLatencyHistogram e2e;
+        AsyncLatencyHistogram queueWait;
+        double utilNanos;              // sum of utilisation * wall time
+        long wallNanos;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            e2e = new AsyncLatencyHistogram();
+            queueWait = new AsyncLatencyHistogram();
+            utilNanos = 0;
+            wallNanos = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void report() {
+            AsyncLatencyHistogram.Summary e = e2e.summary();
+            System.out.printf("%n  e2e p50=%.1f p99=%.1f p99.9=%.1f ms, queue wait p99=%.1f ms, in-flight util=%.0f%%%n",
+                    e.p50 / 1e6, e.p99 / 1e6, e.p999 / 1e6, queueWait.summary().p99 / 1e6,
+                    wallNanos == 0 ? 0 : utilNanos / wallNanos * 100);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ELEMENTS)
+    public AsyncMapLoadTest.Result stream(Config s, StreamMetrics m, RunCount runs) {
+        AsyncMapLoadTest.Result r = AsyncMapLoadTest.run(s.impl, s.model, ELEMENTS, s.maxInFlight, 0, s.timer,
+                m.e2e, m.queueWait);
+        m.utilNanos += r.inFlightUtilisation * r.wallNanos;
+        m.wallNanos += r.wallNanos;
+        runs.streamRuns++;
+        return r;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+Single-flight coalescing + result cache for asyncMapStream mappers
+
+Upstream often repeats keys (same user, same product id ...) and every repeat is another
+downstream call. Wrap the mapper:
+
+  key = keyExtractor(item)
+  1) cache hit (not expired)        -> completed future, no call
+  2) same key already in flight     -> share that call (single-flight)
+  3) otherwise                      -> call, then cache the value for ttl
+
+- in flight : ConcurrentHashMap<K, future>, putIfAbsent elects one leader per key
+- cache     : access-ordered LinkedHashMap, evicts least recently used beyond maxEntries,
+              entries expire after ttl (checked on read). Short critical sections under its monitor.
+- failures are not cached; the next request for the key calls again
+- callers get a dependent future, so one caller's cancel() does not cancel the shared call
+- the leader re-checks the cache after winning putIfAbsent: a call that finished in between
+  is not repeated
+
+Downstream calls ~ distinct keys per ttl instead of elements.
+*/
+package ParkingSpot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+public class CoalescingAsyncMap {
+
+    static final class CoalescingMapper<T, K, U> implements Function<T, CompletableFuture<U>> {
+        private final Function<T, K> keyExtractor;
+        private final Function<T, CompletableFuture<U>> mapper;
+        private final long ttlNanos;
+        private final ConcurrentHashMap<K, CompletableFuture<U>> inFlight = new ConcurrentHashMap<>();
+        private final LinkedHashMap<K, Cached<U>> cache;
+
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong cacheHits = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+
+        private static final class Cached<U> {
+            final U value;
+            final long expiresAt;
+
+            Cached(U value, long expiresAt) {
+                this.value = value;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        CoalescingMapper(Function<T, K> keyExtractor, Function<T, CompletableFuture<U>> mapper,
+                         Duration ttl, int maxEntries) {
+            this.keyExtractor = keyExtractor;
+            this.mapper = mapper;
+            this.ttlNanos = ttl.toNanos();
+            this.cache = new LinkedHashMap<K, Cached<U>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Cached<U>> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        @Override
+        public CompletableFuture<U> apply(T item) {
+            K key = keyExtractor.apply(item);
+            Cached<U> hit = cached(key);
+            if (hit != null) {
+                cacheHits.incrementAndGet();
+                return CompletableFuture.completedFuture(hit.value);
+            }
+
+            CompletableFuture<U> mine = new CompletableFuture<>();
+            CompletableFuture<U> shared = inFlight.putIfAbsent(key, mine);
+            if (shared != null) {
+                coalesced.incrementAndGet();
+                return shared.thenApply(Function.identity());
+            }
+
+            hit = cached(key);                                  // finished between our miss and putIfAbsent
+            if (hit != null) {
+                inFlight.remove(key, mine);
+                mine.complete(hit.value);
+                cacheHits.incrementAndGet();
+                return mine.thenApply(Function.identity());
+            }
+
+            calls.incrementAndGet();
+            CompletableFuture<U> call;
+            try {
+                call = mapper.apply(item);
+            } catch (RuntimeException e) {
+                call = CompletableFuture.failedFuture(e);
+            }
+            call.whenComplete((v, ex) -> {
+                if (ex == null) {
+                    synchronized (cache) {
+                        cache.put(key, new Cached<>(v, System.nanoTime() + ttlNanos));
+                    }
+                }
+                inFlight.remove(key, mine);                    // after the cache put: no gap for a second call
+                if (ex == null) mine.complete(v);
+                else mine.completeExceptionally(ex);
+            });
+            return mine.thenApply(Function.identity());
+        }
+
+        private Cached<U> cached(K key) {
+            synchronized (cache) {
+                Cached<U> c = cache.get(key);
+                if (c == null) return null;
+                if (System.nanoTime() - c.expiresAt >= 0) {
+                    cache.remove(key);
+                    return null;
+                }
+                return c;
+            }
+        }
+
+        int cacheSize() {
+            synchronized (cache) {
+                return cache.size();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long total = calls.get() + cacheHits.get() + coalesced.get();
+            return "requests=" + total + ", downstream calls=" + calls.get() + ", cache hits=" + cacheHits.get()
+                    + ", coalesced=" + coalesced.get() + ", cached keys=" + cacheSize();
+        }
+    }
+
+    /** Ordered stream (input order) over a coalescing / caching mapper. */
+    public static <T, K, U> Iterator<CompletableFuture<U>> asyncMapStream(
+            Iterator<T> upstream,
+            Function<T, K> keyExtractor,
+            Function<T, CompletableFuture<U>> mapper,
+            int maxFuturesInFlight,
+            Duration ttl,
+            int maxCacheEntries) {
+        return OrderedAsyncMap.asyncMapStream(upstream,
+                new CoalescingMapper<>(keyExtractor, mapper, ttl, maxCacheEntries),
+                maxFuturesInFlight, OrderedAsyncMap.Ordering.ORDERED);
+    }
+
+    // ---------------- Demo: 20k lookups over 500 product ids ----------------
+    public static void main(String[] args) {
+        ScheduledExecutorService server = Executors.newScheduledThreadPool(2);
+        Function<String, CompletableFuture<String>> lookup = id -> {
+            CompletableFuture<String> f = new CompletableFuture<>();
+            server.schedule(() -> f.complete("price-of-" + id), 5, TimeUnit.MILLISECONDS);
+            return f;
+        };
+
+        List<String> input = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            int id = (int) Math.min(499, Math.abs(ThreadLocalRandom.current().nextGaussian()) * 100);   // skewed
+            input.add("product-" + id);
+        }
+
+        CoalescingMapper<String, String, String> mapper =
+                new CoalescingMapper<>(Function.identity(), lookup, Duration.ofSeconds(30), 256);
+        long t0 = System.nanoTime();
+        Iterator<CompletableFuture<String>> it = OrderedAsyncMap.asyncMapStream(
+                input.iterator(), mapper, 64, OrderedAsyncMap.Ordering.ORDERED);
+        int n = 0;
+        while (it.hasNext()) {
+            it.next().join();
+            n++;
+        }
+        System.out.printf("%d results in %d ms%n  %s%n", n, (System.nanoTime() - t0) / 1_000_000, mapper);
+        server.shutdown();
+    }
+}
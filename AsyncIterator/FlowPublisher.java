@@ -0,0 +1,306 @@
+/*
+asyncMapStream as a java.util.concurrent.Flow.Publisher<U>
+
+Iterator contract = a consumer thread blocked in readyQueue.take(). Publisher contract =
+subscriber says request(n), we push at most n onNext, nobody blocks.
+
+- demand   : requested (AtomicLong, capped at Long.MAX_VALUE = unbounded)
+- launch   : only while inFlight < maxFuturesInFlight AND inFlight + ready < requested
+             -> nothing is computed that the subscriber has not asked for
+- emit     : completion order; a failed element -> onError and cancel the rest
+- complete : when nothing is in flight or ready, upstream.hasNext() is probed even with zero
+             demand, so a subscriber that requested exactly the element count still gets onComplete
+- cancel() : stops launching, cancels every in-flight future (mapper futures see
+             cancellation), closes upstream if it is AutoCloseable
+- one drain loop (wip counter, same as LockFreeEagerAsyncMap) does launching AND signalling,
+  so onNext/onError/onComplete are never concurrent (Flow rule) and never recursive.
+- the iterator can be consumed once -> a second subscriber gets onError.
+*/
+package ParkingSpot;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+public class FlowAsyncMap {
+
+    public static <T, U> Flow.Publisher<U> asyncMapPublisher(
+            Iterator<T> upstream,
+            Function<T, CompletableFuture<U>> mapper,
+            int maxFuturesInFlight) {
+
+        if (maxFuturesInFlight <= 0) throw new IllegalArgumentException("maxFuturesInFlight must be > 0");
+        AtomicBoolean subscribed = new AtomicBoolean();
+        return subscriber -> {
+            if (!subscribed.compareAndSet(false, true)) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override public void request(long n) { }
+
+                    @Override public void cancel() { }
+                });
+                subscriber.onError(new IllegalStateException("asyncMapPublisher supports a single subscriber"));
+                return;
+            }
+            MapSubscription<T, U> s = new MapSubscription<>(upstream, mapper, maxFuturesInFlight, subscriber);
+            subscriber.onSubscribe(s);
+            s.drain();
+        };
+    }
+
+    private static final class MapSubscription<T, U> implements Flow.Subscription {
+        private final Iterator<T> upstream;
+        private final Function<T, CompletableFuture<U>> mapper;
+        private final int maxFuturesInFlight;
+        private final Flow.Subscriber<? super U> subscriber;
+
+        private final ConcurrentLinkedQueue<CompletableFuture<U>> readyQueue = new ConcurrentLinkedQueue<>();
+        private final Set<CompletableFuture<U>> running = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger ready = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable badRequest;
+        private boolean upstreamExhausted;                  // drainer only
+        private boolean terminated;                         // drainer only
+
+        MapSubscription(Iterator<T> upstream, Function<T, CompletableFuture<U>> mapper, int maxFuturesInFlight,
+                        Flow.Subscriber<? super U> subscriber) {
+            this.upstream = upstream;
+            this.mapper = mapper;
+            this.maxFuturesInFlight = maxFuturesInFlight;
+            this.subscriber = subscriber;
+        }
+
+        // ---------------- Subscription ----------------
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("request(" + n + ") must be > 0");   // rule 3.9
+            } else {
+                requested.accumulateAndGet(n, (cur, add) -> cur + add < 0 ? Long.MAX_VALUE : cur + add);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        // ---------------- Drain loop ----------------
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                if (!terminated) step();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /** One pass; inline completions and re-entrant request() bump wip, so drain() runs it again. */
+        private void step() {
+            if (cancelled) {
+                stop();
+                return;
+            }
+            if (badRequest != null) {
+                stop();
+                subscriber.onError(badRequest);
+                return;
+            }
+
+            // 1) emit what is ready, up to demand
+            CompletableFuture<U> f;
+            while (requested.get() > 0 && (f = readyQueue.poll()) != null) {
+                ready.decrementAndGet();
+                if (f.isCompletedExceptionally()) {
+                    Throwable err = f.handle((v, ex) -> ex instanceof CompletionException && ex.getCause() != null
+                            ? ex.getCause() : ex).join();
+                    stop();
+                    subscriber.onError(err);
+                    return;
+                }
+                U value = f.join();
+                if (value == null) {
+                    stop();
+                    subscriber.onError(new NullPointerException("mapper produced null"));
+                    return;
+                }
+                if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                subscriber.onNext(value);
+                if (cancelled) {
+                    stop();
+                    return;
+                }
+            }
+
+            // 2) launch for outstanding demand only
+            while (!upstreamExhausted && inFlight.get() < maxFuturesInFlight
+                    && inFlight.get() + ready.get() < requested.get()) {
+                T item;
+                try {
+                    if (!upstream.hasNext()) {
+                        upstreamExhausted = true;
+                        break;
+                    }
+                    item = upstream.next();
+                } catch (RuntimeException e) {
+                    stop();
+                    subscriber.onError(e);
+                    return;
+                }
+                inFlight.incrementAndGet();
+                CompletableFuture<U> fut;
+                try {
+                    fut = mapper.apply(item);
+                } catch (RuntimeException e) {
+                    fut = CompletableFuture.failedFuture(e);
+                }
+                CompletableFuture<U> started = fut;
+                running.add(started);
+                started.whenComplete((v, ex) -> onComplete(started));
+            }
+
+            // 3) idle: probe upstream even without demand, onComplete needs no request (rule 1.4)
+            if (!upstreamExhausted && inFlight.get() == 0 && ready.get() == 0) {
+                try {
+                    upstreamExhausted = !upstream.hasNext();
+                } catch (RuntimeException e) {
+                    stop();
+                    subscriber.onError(e);
+                    return;
+                }
+            }
+
+            // 4) done?
+            if (upstreamExhausted && inFlight.get() == 0 && readyQueue.isEmpty()) {
+                terminated = true;
+                subscriber.onComplete();
+            }
+        }
+
+        private void onComplete(CompletableFuture<U> fut) {
+            running.remove(fut);
+            if (cancelled) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            readyQueue.offer(fut);
+            ready.incrementAndGet();
+            inFlight.decrementAndGet();
+            drain();
+        }
+
+        /** Terminal: no more signals, cancel in-flight work, release upstream. */
+        private void stop() {
+            terminated = true;
+            cancelled = true;
+            for (CompletableFuture<U> f : running) f.cancel(true);
+            readyQueue.clear();
+            if (upstream instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) upstream).close();
+                } catch (Exception ignored) {
+                    // best effort
+                }
+            }
+        }
+    }
+
+    // ---------------- Demo: request(2) at a time, cancel after 7 ----------------
+    public static void main(String[] args) throws InterruptedException {
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger cancelledCalls = new AtomicInteger();
+
+        Function<Integer, CompletableFuture<String>> mapper = i -> {
+            calls.incrementAndGet();
+            CompletableFuture<String> f = new CompletableFuture<>();
+            f.whenComplete((v, ex) -> { if (f.isCancelled()) cancelledCalls.incrementAndGet(); });
+            timer.schedule(() -> f.complete("Processed-" + i), 20 + (i * 7) % 30, TimeUnit.MILLISECONDS);
+            return f;
+        };
+
+        class Upstream implements Iterator<Integer>, AutoCloseable {
+            int i;
+            boolean closed;
+
+            @Override public boolean hasNext() { return !closed && i < 1_000; }
+
+            @Override public Integer next() { return i++; }
+
+            @Override public void close() { closed = true; }
+        }
+        Upstream upstream = new Upstream();
+
+        CountDownLatch done = new CountDownLatch(1);
+        asyncMapPublisher(upstream, mapper, 4).subscribe(new Flow.Subscriber<String>() {
+            Flow.Subscription sub;
+            int received;
+
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                sub = s;
+                s.request(2);
+            }
+
+            @Override
+            public void onNext(String item) {
+                System.out.println("onNext " + item);
+                if (++received == 7) {
+                    sub.cancel();
+                    done.countDown();
+                } else if (received % 2 == 0) {
+                    sub.request(2);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.out.println("onError " + t);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.println("onComplete");
+                done.countDown();
+            }
+        });
+        done.await();
+        Thread.sleep(100);
+        System.out.println("mapper calls=" + calls.get() + " (demand-driven, not 1000), cancelled in flight="
+                + cancelledCalls.get() + ", upstream closed=" + upstream.closed);
+
+        // request exactly the element count: onComplete still arrives, no extra request(1) needed
+        CountDownLatch completed = new CountDownLatch(1);
+        asyncMapPublisher(List.of(1, 2, 3).iterator(), mapper, 4).subscribe(new Flow.Subscriber<String>() {
+            @Override public void onSubscribe(Flow.Subscription s) { s.request(3); }
+
+            @Override public void onNext(String item) { System.out.println("onNext " + item); }
+
+            @Override public void onError(Throwable t) { System.out.println("onError " + t); completed.countDown(); }
+
+            @Override public void onComplete() { System.out.println("onComplete (after request(3) of 3)"); completed.countDown(); }
+        });
+        completed.await();
+        timer.shutdown();
+    }
+}
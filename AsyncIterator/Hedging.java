@@ -0,0 +1,209 @@
+/*
+Per-element deadlines + hedged requests for asyncMapStream
+
+In the ordered (non-eager) stream one slow call holds back everything behind it, so the
+stream's tail follows the slowest call. Two tools, both wrapped around the mapper so they
+work with any asyncMapStream variant:
+
+1) deadline : element fails with TimeoutException after `timeout`; its attempts are cancelled
+2) hedging  : if the element is still running after hedgeDelay, send ONE duplicate call
+              and take whichever succeeds first (the loser is cancelled)
+     hedgeDelay = max(minHedgeDelay, p-th percentile of observed primary latency)
+                  (log-linear AsyncLatencyHistogram, recomputed every 256 samples)
+     bounded extra load: a hedge is sent only while hedges <= maxHedgeRatio * primaries + 10,
+                  so e.g. 0.05 caps the extra downstream load at ~5%
+     an attempt failure only fails the element when no other attempt is still running
+
+Metrics: primaries, hedges, hedge wins, timeouts -> hedgeRate = hedges / primaries,
+winRate = wins / hedges (a low win rate says the delay is too short).
+*/
+package ParkingSpot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+public class HedgedAsyncMap {
+
+    static final int HEDGE_BURST = 10;
+    static final int RECOMPUTE_EVERY = 256;
+
+    /** Wraps a mapper with a deadline and optional hedging. */
+    static final class HedgedMapper<T, U> implements Function<T, CompletableFuture<U>> {
+        private final Function<T, CompletableFuture<U>> mapper;
+        private final ScheduledExecutorService scheduler;
+        private final long timeoutNanos;
+        private final double hedgePercentile;                 // 0 = no hedging
+        private final long minHedgeDelayNanos;
+        private final double maxHedgeRatio;
+
+        private final AsyncLatencyHistogram primaryLatency = new AsyncLatencyHistogram();
+        private final AtomicLong samples = new AtomicLong();
+        private volatile long hedgeDelayNanos;
+
+        final AtomicLong primaries = new AtomicLong();
+        final AtomicLong hedges = new AtomicLong();
+        final AtomicLong hedgeWins = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+
+        HedgedMapper(Function<T, CompletableFuture<U>> mapper, ScheduledExecutorService scheduler, Duration timeout,
+                     double hedgePercentile, Duration minHedgeDelay, double maxHedgeRatio) {
+            this.mapper = mapper;
+            this.scheduler = scheduler;
+            this.timeoutNanos = timeout.toNanos();
+            this.hedgePercentile = hedgePercentile;
+            this.minHedgeDelayNanos = minHedgeDelay.toNanos();
+            this.maxHedgeRatio = maxHedgeRatio;
+            this.hedgeDelayNanos = minHedgeDelayNanos;
+        }
+
+        @Override
+        public CompletableFuture<U> apply(T item) {
+            CompletableFuture<U> result = new CompletableFuture<>();
+            AtomicInteger running = new AtomicInteger(1);
+            List<CompletableFuture<U>> attempts = new ArrayList<>(2);
+            long t0 = System.nanoTime();
+            primaries.incrementAndGet();
+
+            CompletableFuture<U> primary = attempt(item);
+            synchronized (attempts) {
+                attempts.add(primary);
+            }
+            primary.whenComplete((v, ex) -> {
+                if (!primary.isCancelled()) recordPrimary(System.nanoTime() - t0);
+                settle(result, running, v, ex, false);
+            });
+
+            ScheduledFuture<?> deadline = scheduler.schedule(() -> {
+                if (result.completeExceptionally(new TimeoutException("element timed out after "
+                        + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"))) {
+                    timeouts.incrementAndGet();
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+
+            ScheduledFuture<?> hedgeTimer = hedgePercentile <= 0 ? null : scheduler.schedule(() -> {
+                if (result.isDone() || !hedgeBudgetAvailable()) return;
+                hedges.incrementAndGet();
+                running.incrementAndGet();
+                CompletableFuture<U> hedge = attempt(item);
+                synchronized (attempts) {
+                    attempts.add(hedge);
+                }
+                hedge.whenComplete((v, ex) -> settle(result, running, v, ex, true));
+                if (result.isDone()) hedge.cancel(true);
+            }, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+
+            result.whenComplete((v, ex) -> {
+                deadline.cancel(false);
+                if (hedgeTimer != null) hedgeTimer.cancel(false);
+                if (primary.isCancelled() || !primary.isDone()) {
+                    recordPrimary(System.nanoTime() - t0);       // censored: at least this slow
+                }
+                synchronized (attempts) {
+                    for (CompletableFuture<U> a : attempts) a.cancel(true);      // losers / timed-out calls
+                }
+            });
+            return result;
+        }
+
+        private CompletableFuture<U> attempt(T item) {
+            try {
+                return mapper.apply(item);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        private void settle(CompletableFuture<U> result, AtomicInteger running, U value, Throwable ex, boolean isHedge) {
+            int left = running.decrementAndGet();
+            if (ex == null) {
+                if (result.complete(value) && isHedge) hedgeWins.incrementAndGet();
+            } else if (left == 0) {
+                result.completeExceptionally(ex);              // nobody else can still succeed
+            }
+        }
+
+        private boolean hedgeBudgetAvailable() {
+            return hedges.get() < maxHedgeRatio * primaries.get() + HEDGE_BURST;
+        }
+
+        private void recordPrimary(long nanos) {
+            primaryLatency.record(nanos);
+            if (hedgePercentile > 0 && samples.incrementAndGet() % RECOMPUTE_EVERY == 0) {
+                hedgeDelayNanos = Math.max(minHedgeDelayNanos, primaryLatency.percentile(hedgePercentile));
+            }
+        }
+
+        double hedgeRate() {
+            long p = primaries.get();
+            return p == 0 ? 0 : (double) hedges.get() / p;
+        }
+
+        double winRate() {
+            long h = hedges.get();
+            return h == 0 ? 0 : (double) hedgeWins.get() / h;
+        }
+
+        @Override
+        public String toString() {
+            return "primaries=" + primaries.get() + ", hedges=" + hedges.get()
+                    + String.format(" (rate %.3f)", hedgeRate()) + ", wins=" + hedgeWins.get()
+                    + String.format(" (rate %.3f)", winRate()) + ", timeouts=" + timeouts.get()
+                    + ", hedgeDelay=" + TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos) + "ms";
+        }
+    }
+
+    /** Ordered stream (input order, like the non-eager version) over a deadline / hedging mapper. */
+    public static <T, U> Iterator<CompletableFuture<U>> asyncMapStream(
+            Iterator<T> upstream,
+            HedgedMapper<T, U> mapper,
+            int maxFuturesInFlight) {
+        return OrderedAsyncMap.asyncMapStream(upstream, mapper, maxFuturesInFlight, OrderedAsyncMap.Ordering.ORDERED);
+    }
+
+    // ---------------- Demo: 3% stragglers (300ms) behind a 10ms service ----------------
+    public static void main(String[] args) {
+        ScheduledExecutorService server = Executors.newScheduledThreadPool(2);
+        ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+        Function<Integer, CompletableFuture<Integer>> call = i -> {
+            CompletableFuture<Integer> f = new CompletableFuture<>();
+            long delay = ThreadLocalRandom.current().nextInt(100) < 3 ? 300 : 8 + ThreadLocalRandom.current().nextInt(5);
+            server.schedule(() -> f.complete(i), delay, TimeUnit.MILLISECONDS);
+            return f;
+        };
+
+        for (double percentile : new double[] { 0, 95 }) {
+            HedgedMapper<Integer, Integer> hedged = new HedgedMapper<>(call, timers, Duration.ofSeconds(1),
+                    percentile, Duration.ofMillis(5), 0.05);
+            AsyncLatencyHistogram e2e = new AsyncLatencyHistogram();
+            Function<Integer, CompletableFuture<Integer>> timed = i -> {
+                long t0 = System.nanoTime();
+                return hedged.apply(i).whenComplete((v, ex) -> e2e.record(System.nanoTime() - t0));
+            };
+            List<Integer> input = new ArrayList<>();
+            for (int i = 0; i < 5_000; i++) input.add(i);
+
+            long t0 = System.nanoTime();
+            Iterator<CompletableFuture<Integer>> it = OrderedAsyncMap.asyncMapStream(
+                    input.iterator(), timed, 64, OrderedAsyncMap.Ordering.ORDERED);
+            while (it.hasNext()) it.next().join();
+            AsyncLatencyHistogram.Summary s = e2e.summary();
+            System.out.printf("%s: %d ms total, element p50=%dms p99=%dms p99.9=%dms%n  %s%n",
+                    percentile == 0 ? "deadline only " : "hedge at p95  ", (System.nanoTime() - t0) / 1_000_000,
+                    s.p50 / 1_000_000, s.p99 / 1_000_000, s.p999 / 1_000_000, hedged);
+        }
+        server.shutdown();
+        timers.shutdown();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+Latency histogram for the asyncMapStream tools (Hedging, LoadTest, Benchmarks)
+
+Log-linear buckets: values < 32 ns get their own bucket, above that every power of two
+is split into 32 sub-buckets -> ~3% relative error, fixed 1.9k longs, no allocation per record.
+
+  record(v)      : one AtomicLongArray increment, safe from any completion thread
+  percentile(p)  : walk the buckets, return the lower bound of the bucket holding rank p
+  summary()      : one consistent snapshot -> count, p50, p99, p99.9, max
+
+Same bucket scheme as the ad-click metrics, kept here so this folder stands on its own.
+*/
+package ParkingSpot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AsyncLatencyHistogram {
+
+    static final int SUB_BITS = 5;
+    static final int SUB = 1 << SUB_BITS;
+    static final int BUCKETS = (63 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0, nanos)));
+    }
+
+    static int indexOf(long v) {
+        if (v < SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((v >>> shift) - SUB);
+    }
+
+    /** Smallest value that lands in bucket idx. */
+    static long lowerBound(int idx) {
+        if (idx < SUB) return idx;
+        int shift = idx / SUB - 1;
+        return ((long) (idx % SUB) + SUB) << shift;
+    }
+
+    /** p in [0, 100]; 0 when nothing was recorded. */
+    public long percentile(double p) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += snapshot[i] = counts.get(i);
+        return percentileOf(snapshot, n, p);
+    }
+
+    private static long percentileOf(long[] snapshot, long n, double p) {
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return lowerBound(i);
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    public Summary summary() {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        int last = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += snapshot[i] = counts.get(i);
+            if (snapshot[i] != 0) last = i;
+        }
+        return new Summary(n, percentileOf(snapshot, n, 50), percentileOf(snapshot, n, 99),
+                percentileOf(snapshot, n, 99.9), n == 0 ? 0 : lowerBound(last));
+    }
+
+    public static final class Summary {
+        public final long count, p50, p99, p999, max;
+
+        Summary(long count, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " p50=" + p50 + "ns p99=" + p99 + "ns p99.9=" + p999 + "ns max~" + max + "ns";
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+Load-test harness: eager vs non-eager asyncMapStream
+
+NonEagerDemo / EagerDemo only print. This drives each implementation with a latency
+model and measures, per run:
+
+  throughput      elements / second
+  end-to-end      upstream.next() -> consumer holds the completed result     (p50/p99/p99.9)
+  queue wait      future completed -> consumer got it  (results parked in the stream;
+                  for NON_EAGER this is head-of-line blocking)
+  in-flight util  time-averaged outstanding mapper calls / maxFuturesInFlight
+
+Latency models (mapper completes on a timer, no thread blocked):
+  CONSTANT    10 ms
+  LOGNORMAL   median 10 ms, sigma 0.5 (p99 ~ 32 ms)
+  BIMODAL     95% 10 ms, 5% stragglers at 200 ms
+
+Implementations:
+  NON_EAGER / EAGER  : the two versions from EagerNonEager.java (a snippet file, so they
+                       are transcribed here unchanged)
+  LOCK_FREE_EAGER    : LockFreeEagerAsyncMap
+
+Usage: java ParkingSpot.AsyncMapLoadTest [elements] [maxInFlight] [consumerThinkMicros]
+JMH variant: AsyncMapBenchmarks (Benchmarks.java).
+*/
+package ParkingSpot;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+public class AsyncMapLoadTest {
+
+    public enum Impl { NON_EAGER, EAGER, LOCK_FREE_EAGER }
+
+    public enum LatencyModel {
+        CONSTANT {
+            long sampleMicros(ThreadLocalRandom r) { return 10_000; }
+        },
+        LOGNORMAL {
+            long sampleMicros(ThreadLocalRandom r) { return (long) (10_000 * Math.exp(0.5 * r.nextGaussian())); }
+        },
+        BIMODAL {
+            long sampleMicros(ThreadLocalRandom r) { return r.nextInt(100) < 5 ? 200_000 : 10_000; }
+        };
+
+        abstract long sampleMicros(ThreadLocalRandom r);
+    }
+
+    static <T, U> Iterator<CompletableFuture<U>> stream(Impl impl, Iterator<T> upstream,
+                                                        Function<T, CompletableFuture<U>> mapper, int maxInFlight) {
+        switch (impl) {
+            case NON_EAGER: return nonEager(upstream, mapper, maxInFlight);
+            case EAGER:     return eager(upstream, mapper, maxInFlight);
+            default:        return LockFreeEagerAsyncMap.asyncMapStream(upstream, mapper, maxInFlight);
+        }
+    }
+
+    // ---------------- One measured run ----------------
+
+    static final class Result {
+        final Impl impl;
+        final LatencyModel model;
+        final int elements;
+        final long wallNanos;
+        final AsyncLatencyHistogram.Summary endToEnd;
+        final AsyncLatencyHistogram.Summary queueWait;
+        final double inFlightUtilisation;
+
+        Result(Impl impl, LatencyModel model, int elements, long wallNanos, AsyncLatencyHistogram.Summary endToEnd,
+               AsyncLatencyHistogram.Summary queueWait, double inFlightUtilisation) {
+            this.impl = impl;
+            this.model = model;
+            this.elements = elements;
+            this.wallNanos = wallNanos;
+            this.endToEnd = endToEnd;
+            this.queueWait = queueWait;
+            this.inFlightUtilisation = inFlightUtilisation;
+        }
+
+        double throughput() {
+            return elements * 1e9 / wallNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-15s %-9s %8.0f el/s  e2e p50=%5.1f p99=%6.1f p99.9=%6.1f ms  "
+                            + "qwait p50=%5.1f p99=%6.1f ms  util=%3.0f%%",
+                    impl, model, throughput(), endToEnd.p50 / 1e6, endToEnd.p99 / 1e6, endToEnd.p999 / 1e6,
+                    queueWait.p50 / 1e6, queueWait.p99 / 1e6, inFlightUtilisation * 100);
+        }
+    }
+
+    static Result run(Impl impl, LatencyModel model, int elements, int maxInFlight, long consumerThinkMicros,
+                      ScheduledExecutorService timer) {
+        return run(impl, model, elements, maxInFlight, consumerThinkMicros, timer,
+                new AsyncLatencyHistogram(), new AsyncLatencyHistogram());
+    }
+
+    /**
+     * Records into the caller's histograms, so several runs can be merged (AsyncMapBenchmarks);
+     * the Result's summaries then cover everything the histograms hold.
+     */
+    static Result run(Impl impl, LatencyModel model, int elements, int maxInFlight, long consumerThinkMicros,
+                      ScheduledExecutorService timer, AsyncLatencyHistogram e2e, AsyncLatencyHistogram queueWait) {
+        long[] pulledAt = new long[elements];
+        long[] completedAt = new long[elements];
+        AtomicInteger outstanding = new AtomicInteger();
+
+        Iterator<Integer> upstream = new Iterator<Integer>() {
+            int i;
+
+            @Override public boolean hasNext() { return i < elements; }
+
+            @Override public Integer next() {
+                pulledAt[i] = System.nanoTime();
+                return i++;
+            }
+        };
+        Function<Integer, CompletableFuture<Integer>> mapper = i -> {
+            outstanding.incrementAndGet();
+            CompletableFuture<Integer> f = new CompletableFuture<>();
+            timer.schedule(() -> {
+                completedAt[i] = System.nanoTime();
+                outstanding.decrementAndGet();
+                f.complete(i);
+            }, model.sampleMicros(ThreadLocalRandom.current()), TimeUnit.MICROSECONDS);
+            return f;
+        };
+
+        // in-flight utilisation: sample every 200us while the run lasts
+        long[] utilSum = new long[2];
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                utilSum[0] += outstanding.get();
+                utilSum[1]++;
+                LockSupport.parkNanos(200_000);
+            }
+        });
+        sampler.setDaemon(true);
+
+        long t0 = System.nanoTime();
+        sampler.start();
+        Iterator<CompletableFuture<Integer>> it = stream(impl, upstream, mapper, maxInFlight);
+        while (it.hasNext()) {
+            int i = it.next().join();
+            long now = System.nanoTime();
+            e2e.record(now - pulledAt[i]);
+            queueWait.record(now - completedAt[i]);
+            if (consumerThinkMicros > 0) LockSupport.parkNanos(consumerThinkMicros * 1000);
+        }
+        long wall = System.nanoTime() - t0;
+        sampler.interrupt();
+        boolean interrupted = false;
+        while (sampler.isAlive()) {
+            try {
+                sampler.join();                   // its last writes to utilSum happen-before the read below
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        double util = utilSum[1] == 0 ? 0 : (double) utilSum[0] / utilSum[1] / maxInFlight;
+        return new Result(impl, model, elements, wall, e2e.summary(), queueWait.summary(), util);
+    }
+
+    public static void main(String[] args) {
+        int elements = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long thinkMicros = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+
+        for (LatencyModel model : LatencyModel.values()) {
+            for (Impl impl : Impl.values()) {
+                run(impl, model, Math.min(500, elements), maxInFlight, thinkMicros, timer);     // warm-up
+                System.out.println(run(impl, model, elements, maxInFlight, thinkMicros, timer));
+            }
+        }
+        timer.shutdown();
+    }
+
+    // ---------------- EagerNonEager.java, transcribed ----------------
+
+    static <T, U> Iterator<CompletableFuture<U>> nonEager(Iterator<T> upstream,
+                                                          Function<T, CompletableFuture<U>> mapper,
+                                                          int maxFuturesInFlight) {
+        return new Iterator<CompletableFuture<U>>() {
+            private final ArrayDeque<CompletableFuture<U>> queue = new ArrayDeque<>();
+
+            private void fillQueue() {
+                while (queue.size() < maxFuturesInFlight && upstream.hasNext()) {
+                    queue.add(mapper.apply(upstream.next()));
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (!queue.isEmpty()) return true;
+                fillQueue();
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public CompletableFuture<U> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                CompletableFuture<U> fut = queue.poll();
+                fillQueue();
+                return fut;
+            }
+        };
+    }
+
+    static <T, U> Iterator<CompletableFuture<U>> eager(Iterator<T> upstream,
+                                                       Function<T, CompletableFuture<U>> mapper,
+                                                       int maxFuturesInFlight) {
+        return new Iterator<CompletableFuture<U>>() {
+            private final BlockingQueue<CompletableFuture<U>> readyQueue = new LinkedBlockingQueue<>();
+            private int inFlight = 0;
+            private boolean upstreamExhausted = false;
+            private final Object lock = new Object();
+
+            {
+                scheduleMore();
+            }
+
+            private void scheduleMore() {
+                synchronized (lock) {
+                    while (inFlight < maxFuturesInFlight && upstream.hasNext()) {
+                        T nextItem = upstream.next();
+                        inFlight++;
+                        CompletableFuture<U> fut = mapper.apply(nextItem);
+                        fut.whenCompleteAsync((val, ex) -> {
+                            synchronized (lock) {
+                                inFlight--;
+                            }
+                            readyQueue.add(fut);
+                            scheduleMore();
+                        });
+                    }
+                    if (!upstream.hasNext()) upstreamExhausted = true;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                synchronized (lock) {
+                    if (!readyQueue.isEmpty()) return true;
+                    return !(upstreamExhausted && inFlight == 0);
+                }
+            }
+
+            @Override
+            public CompletableFuture<U> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                try {
+                    return readyQueue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,252 @@
+/*
+Micro-batching asyncMapStream
+
+Downstream has a batch endpoint: Function<List<T>, CompletableFuture<List<U>>>.
+Calling it per element costs one request per element; batching divides that by the batch size.
+
+  flush a batch when   size == maxBatchSize   OR   maxLinger passed since its first item
+                       OR upstream ended      OR   no permit left for one more element
+
+  in-flight limit, counted in
+    ELEMENTS : a permit per element; maxFuturesInFlight >= maxBatchSize
+    BATCHES  : a permit per batch call
+
+Threads (upstream.hasNext() may block and cannot time out, so linger needs its own thread):
+  reader  : upstream -> bounded inbox (backpressure to upstream)
+  batcher : inbox.poll(until linger deadline) -> batch -> batchMapper.apply
+The consumer gets one future per element, in INPUT order; the batch result is split back
+by index (result list must have the same size as the request, else every element fails).
+*/
+package ParkingSpot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+public class MicroBatchingAsyncMap {
+
+    enum LimitUnit { ELEMENTS, BATCHES }
+
+    private static final Object END = new Object();
+    private static final CompletableFuture<?> END_OF_STREAM = new CompletableFuture<>();
+
+    private static final class UpstreamFailure {
+        final RuntimeException cause;
+
+        UpstreamFailure(RuntimeException cause) {
+            this.cause = cause;
+        }
+    }
+
+    /** Downstream calls / elements, for checking the batch factor. */
+    static final class BatchStats {
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong elements = new AtomicLong();
+
+        double averageBatchSize() {
+            long b = batches.get();
+            return b == 0 ? 0 : (double) elements.get() / b;
+        }
+
+        @Override
+        public String toString() {
+            return "batches=" + batches.get() + ", elements=" + elements.get()
+                    + String.format(", avgBatch=%.1f", averageBatchSize());
+        }
+    }
+
+    public static <T, U> Iterator<CompletableFuture<U>> asyncMapStream(
+            Iterator<T> upstream,
+            Function<List<T>, CompletableFuture<List<U>>> batchMapper,
+            int maxBatchSize,
+            long maxLinger,
+            TimeUnit lingerUnit,
+            int maxFuturesInFlight,
+            LimitUnit limitUnit,
+            BatchStats stats) {
+
+        if (maxBatchSize <= 0 || maxFuturesInFlight <= 0) throw new IllegalArgumentException("sizes must be > 0");
+        if (limitUnit == LimitUnit.ELEMENTS && maxFuturesInFlight < maxBatchSize) {
+            throw new IllegalArgumentException("ELEMENTS limit must allow one full batch");
+        }
+
+        BlockingQueue<Object> inbox = new ArrayBlockingQueue<>(2 * maxBatchSize);
+        BlockingQueue<CompletableFuture<U>> out = new LinkedBlockingQueue<>();
+        Semaphore permits = new Semaphore(maxFuturesInFlight);
+        long lingerNanos = lingerUnit.toNanos(maxLinger);
+
+        Thread reader = new Thread(() -> {
+            try {
+                while (upstream.hasNext()) inbox.put(upstream.next());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                try {
+                    inbox.put(new UpstreamFailure(e));      // batcher turns it into a failed element; a full inbox must not drop it
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            } finally {
+                try {
+                    inbox.put(END);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "microbatch-reader");
+
+        Thread batcher = new Thread(() -> {
+            try {
+                boolean ended = false;
+                while (!ended) {
+                    List<T> items = new ArrayList<>(maxBatchSize);
+                    List<CompletableFuture<U>> futures = new ArrayList<>(maxBatchSize);
+                    if (limitUnit == LimitUnit.BATCHES) permits.acquire();
+                    long deadline = 0;
+
+                    while (items.size() < maxBatchSize) {
+                        Object next;
+                        if (items.isEmpty()) {
+                            next = inbox.take();
+                        } else {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) break;
+                            next = inbox.poll(left, TimeUnit.NANOSECONDS);
+                            if (next == null) break;                        // linger expired
+                        }
+                        if (next == END) {
+                            ended = true;
+                            break;
+                        }
+                        if (next instanceof UpstreamFailure) {
+                            out.add(CompletableFuture.failedFuture(((UpstreamFailure) next).cause));
+                            continue;
+                        }
+                        if (limitUnit == LimitUnit.ELEMENTS && !permits.tryAcquire()) {
+                            if (!items.isEmpty()) {                         // flush what we have, then wait
+                                send(items, futures, batchMapper, permits, limitUnit, stats);
+                                items = new ArrayList<>(maxBatchSize);
+                                futures = new ArrayList<>(maxBatchSize);
+                            }
+                            permits.acquire();
+                        }
+                        @SuppressWarnings("unchecked")
+                        T item = (T) next;
+                        if (items.isEmpty()) deadline = System.nanoTime() + lingerNanos;
+                        items.add(item);
+                        CompletableFuture<U> f = new CompletableFuture<>();
+                        futures.add(f);
+                        out.add(f);                                          // input order
+                    }
+
+                    if (!items.isEmpty()) send(items, futures, batchMapper, permits, limitUnit, stats);
+                    else if (limitUnit == LimitUnit.BATCHES) permits.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<U> end = (CompletableFuture<U>) END_OF_STREAM;
+                out.add(end);
+            }
+        }, "microbatch-batcher");
+
+        reader.setDaemon(true);
+        batcher.setDaemon(true);
+        reader.start();
+        batcher.start();
+
+        return new Iterator<CompletableFuture<U>>() {
+            private CompletableFuture<U> head;
+
+            @Override
+            public boolean hasNext() {
+                if (head == null) {
+                    try {
+                        head = out.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                }
+                return head != END_OF_STREAM;
+            }
+
+            @Override
+            public CompletableFuture<U> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                CompletableFuture<U> f = head;
+                head = null;
+                return f;
+            }
+        };
+    }
+
+    private static <T, U> void send(List<T> items, List<CompletableFuture<U>> futures,
+                                    Function<List<T>, CompletableFuture<List<U>>> batchMapper,
+                                    Semaphore permits, LimitUnit limitUnit, BatchStats stats) {
+        int n = items.size();
+        if (stats != null) {
+            stats.batches.incrementAndGet();
+            stats.elements.addAndGet(n);
+        }
+        CompletableFuture<List<U>> call;
+        try {
+            call = batchMapper.apply(items);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        call.whenComplete((results, ex) -> {
+            permits.release(limitUnit == LimitUnit.ELEMENTS ? n : 1);
+            if (ex == null && (results == null || results.size() != n)) {
+                ex = new IllegalStateException("batch of " + n + " returned "
+                        + (results == null ? "null" : results.size() + " results"));
+            }
+            for (int i = 0; i < n; i++) {
+                if (ex != null) futures.get(i).completeExceptionally(ex);
+                else futures.get(i).complete(results.get(i));
+            }
+        });
+    }
+
+    // ---------------- Demo: per-element vs batched downstream calls ----------------
+    public static void main(String[] args) {
+        ScheduledExecutorService server = Executors.newScheduledThreadPool(2);
+        Function<List<Integer>, CompletableFuture<List<String>>> batchEndpoint = batch -> {
+            CompletableFuture<List<String>> f = new CompletableFuture<>();
+            List<String> results = new ArrayList<>(batch.size());
+            for (Integer i : batch) results.add("Processed-" + i);
+            server.schedule(() -> f.complete(results), 10, TimeUnit.MILLISECONDS);   // ~fixed cost per request
+            return f;
+        };
+
+        for (int maxBatch : new int[] { 1, 10, 100 }) {
+            BatchStats stats = new BatchStats();
+            List<Integer> input = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) input.add(i);
+            long t0 = System.nanoTime();
+            Iterator<CompletableFuture<String>> it = asyncMapStream(input.iterator(), batchEndpoint,
+                    maxBatch, 2, TimeUnit.MILLISECONDS, 400, LimitUnit.ELEMENTS, stats);
+            int n = 0;
+            String last = null;
+            while (it.hasNext()) {
+                last = it.next().join();
+                n++;
+            }
+            System.out.printf("maxBatch=%3d: %d results (last=%s) in %d ms, %s%n",
+                    maxBatch, n, last, (System.nanoTime() - t0) / 1_000_000, stats);
+        }
+        server.shutdown();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+asyncMapStream with a selectable ordering contract
+
+  UNORDERED : completion order (eager). Lowest latency, no ordering at all.
+  ORDERED   : input order, but still looks ahead past a slow head element.
+  WINDOWED  : an element may overtake at most (window - 1) earlier ones:
+              element seq s can be emitted once done and s < head + window,
+              head = lowest seq not yet emitted.  window = 1 is ORDERED.
+
+Reorder buffer: a ring of reorderBufferLimit slots indexed by seq. Nothing is launched
+at seq >= head + reorderBufferLimit, so a slow head stalls the stream only after that
+many elements are buffered behind it -> memory bound = reorderBufferLimit results,
+independent of how slow the head is. (UNORDERED needs no buffer.)
+
+Scheduling is the lock-free drain loop of LockFreeEagerAsyncMap; completions carry their
+seq through the MPSC ready queue and only the consumer thread touches the reorder buffer.
+*/
+package ParkingSpot;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class OrderedAsyncMap {
+
+    enum Ordering { UNORDERED, ORDERED, WINDOWED }
+
+    public static <T, U> Iterator<CompletableFuture<U>> asyncMapStream(
+            Iterator<T> upstream,
+            Function<T, CompletableFuture<U>> mapper,
+            int maxFuturesInFlight,
+            Ordering ordering) {
+        return asyncMapStream(upstream, mapper, maxFuturesInFlight, ordering, 1, Math.max(1, 4 * maxFuturesInFlight));
+    }
+
+    /**
+     * @param window             WINDOWED only: how far an element may run ahead of the head
+     * @param reorderBufferLimit ORDERED / WINDOWED: max seq span between head and newest launched element
+     */
+    public static <T, U> Iterator<CompletableFuture<U>> asyncMapStream(
+            Iterator<T> upstream,
+            Function<T, CompletableFuture<U>> mapper,
+            int maxFuturesInFlight,
+            Ordering ordering,
+            int window,
+            int reorderBufferLimit) {
+
+        if (maxFuturesInFlight <= 0) throw new IllegalArgumentException("maxFuturesInFlight must be > 0");
+        if (ordering == Ordering.ORDERED) window = 1;
+        if (ordering != Ordering.UNORDERED && (window <= 0 || reorderBufferLimit < window)) {
+            throw new IllegalArgumentException("need 0 < window <= reorderBufferLimit");
+        }
+        Stream<T, U> s = new Stream<>(upstream, mapper, maxFuturesInFlight,
+                ordering == Ordering.UNORDERED ? 0 : window, reorderBufferLimit);
+        s.drain();
+        return s;
+    }
+
+    private static final class Done<U> {
+        final long seq;
+        final CompletableFuture<U> fut;
+
+        Done(long seq, CompletableFuture<U> fut) {
+            this.seq = seq;
+            this.fut = fut;
+        }
+    }
+
+    private static final class Stream<T, U> implements Iterator<CompletableFuture<U>> {
+        private final Iterator<T> upstream;
+        private final Function<T, CompletableFuture<U>> mapper;
+        private final int maxFuturesInFlight;
+        private final int window;                            // 0 = unordered
+        private final int limit;
+
+        // shared with completing threads
+        private final ConcurrentLinkedQueue<Done<U>> readyQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean upstreamExhausted;
+        private volatile long head;                          // written by the consumer, read by the drainer
+        private volatile Thread consumer;
+        private long nextSeq;                                // drainer only
+
+        // consumer only
+        private final CompletableFuture<U>[] buffer;          // seq % limit -> done, head not past it yet
+        private final boolean[] emitted;
+        private final ArrayDeque<Done<U>> eligible = new ArrayDeque<>();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Stream(Iterator<T> upstream, Function<T, CompletableFuture<U>> mapper, int maxFuturesInFlight,
+               int window, int limit) {
+            this.upstream = upstream;
+            this.mapper = mapper;
+            this.maxFuturesInFlight = maxFuturesInFlight;
+            this.window = window;
+            this.limit = limit;
+            this.buffer = window == 0 ? null : new CompletableFuture[limit];
+            this.emitted = window == 0 ? null : new boolean[limit];
+        }
+
+        // ---------------- Scheduling (lock-free drain loop) ----------------
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                launchWhilePermits();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void launchWhilePermits() {
+            while (!upstreamExhausted && inFlight.get() < maxFuturesInFlight
+                    && (window == 0 || nextSeq - head < limit)) {
+                long seq = nextSeq;
+                T item;
+                try {
+                    if (!upstream.hasNext()) {
+                        upstreamExhausted = true;
+                        wakeConsumer();
+                        return;
+                    }
+                    item = upstream.next();
+                } catch (RuntimeException e) {
+                    nextSeq++;
+                    inFlight.incrementAndGet();
+                    onComplete(seq, CompletableFuture.failedFuture(e));
+                    upstreamExhausted = true;
+                    wakeConsumer();
+                    return;
+                }
+
+                nextSeq++;
+                inFlight.incrementAndGet();
+                CompletableFuture<U> fut;
+                try {
+                    fut = mapper.apply(item);
+                } catch (RuntimeException e) {
+                    fut = CompletableFuture.failedFuture(e);
+                }
+                CompletableFuture<U> f = fut;
+                f.whenComplete((val, ex) -> onComplete(seq, f));
+            }
+        }
+
+        private void onComplete(long seq, CompletableFuture<U> fut) {
+            readyQueue.offer(new Done<>(seq, fut));
+            inFlight.decrementAndGet();
+            wakeConsumer();
+            drain();
+        }
+
+        private void wakeConsumer() {
+            Thread t = consumer;
+            if (t != null) LockSupport.unpark(t);
+        }
+
+        // ---------------- Reorder buffer (consumer thread) ----------------
+
+        /** Move completions from the ready queue into the buffer; those inside the window become eligible. */
+        private void absorb() {
+            Done<U> d;
+            while ((d = readyQueue.poll()) != null) {
+                if (window != 0) buffer[slot(d.seq)] = d.fut;
+                if (window == 0 || d.seq < head + window) eligible.add(d);
+            }
+        }
+
+        private CompletableFuture<U> emit() {
+            Done<U> d = eligible.poll();
+            if (window == 0) return d.fut;
+
+            emitted[slot(d.seq)] = true;
+            long h = head;
+            if (d.seq == h) {
+                while (emitted[slot(h)]) {                          // slide over the emitted prefix
+                    buffer[slot(h)] = null;
+                    emitted[slot(h)] = false;
+                    h++;
+                    long entering = h + window - 1;                 // seq that just entered the window
+                    CompletableFuture<U> waiting = buffer[slot(entering)];
+                    if (waiting != null && !emitted[slot(entering)]) {
+                        eligible.add(new Done<>(entering, waiting));
+                    }
+                }
+                head = h;
+                drain();                                            // buffer space freed
+            }
+            return d.fut;
+        }
+
+        private int slot(long seq) {
+            return (int) (seq % limit);
+        }
+
+        // ---------------- Iterator ----------------
+
+        @Override
+        public boolean hasNext() {
+            while (true) {
+                absorb();
+                if (!eligible.isEmpty()) return true;
+                if (upstreamExhausted && inFlight.get() == 0 && readyQueue.isEmpty()) return false;
+
+                consumer = Thread.currentThread();
+                if (readyQueue.isEmpty() && !(upstreamExhausted && inFlight.get() == 0)) {
+                    LockSupport.park(this);
+                }
+                consumer = null;
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(new InterruptedException());
+                }
+            }
+        }
+
+        @Override
+        public CompletableFuture<U> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return emit();
+        }
+    }
+
+    // ---------------- Demo ----------------
+    public static void main(String[] args) {
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+        Random rand = new Random(7);
+        List<Integer> input = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+        int[] delays = input.stream().mapToInt(i -> i == 0 ? 300 : 10 + rand.nextInt(40)).toArray();   // slow head
+
+        Function<Integer, CompletableFuture<Integer>> mapper = i -> {
+            CompletableFuture<Integer> f = new CompletableFuture<>();
+            timer.schedule(() -> f.complete(i), delays[i], TimeUnit.MILLISECONDS);
+            return f;
+        };
+
+        for (Ordering o : Ordering.values()) {
+            long t0 = System.nanoTime();
+            Iterator<CompletableFuture<Integer>> it = asyncMapStream(input.iterator(), mapper, 4, o, 4, 8);
+            StringBuilder sb = new StringBuilder();
+            while (it.hasNext()) sb.append(it.next().join()).append(' ');
+            System.out.printf("%-9s %4d ms  %s%n", o, (System.nanoTime() - t0) / 1_000_000, sb);
+        }
+        timer.shutdown();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+Virtual-thread mode for asyncMapStream (needs JDK 21)
+
+Mapper is a plain BLOCKING Function<T, U> (JDBC, HTTP client, file I/O ...).
+Each call runs on its own virtual thread, so thousands can block at once without
+a platform pool, and nothing is chained onto the common ForkJoinPool.
+
+- a Semaphore(maxFuturesInFlight) bounds calls in flight
+- one virtual dispatcher thread owns upstream (iterators are not thread-safe):
+      acquire permit -> upstream.next() -> start virtual thread for mapper.apply
+- the call's thread completes the future, releases the permit, adds it to readyQueue
+- results come out in completion order (like the eager version)
+- end of stream: dispatcher takes ALL permits (= every call finished), then adds END
+- mapper / upstream exceptions -> failed future in the stream, never a lost element
+*/
+package ParkingSpot;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+public class VirtualThreadAsyncMap {
+
+    private static final CompletableFuture<?> END = new CompletableFuture<>();
+
+    public static <T, U> Iterator<CompletableFuture<U>> asyncMapStream(
+            Iterator<T> upstream,
+            Function<T, U> blockingMapper,
+            int maxFuturesInFlight) {
+
+        if (maxFuturesInFlight <= 0) throw new IllegalArgumentException("maxFuturesInFlight must be > 0");
+
+        BlockingQueue<CompletableFuture<U>> readyQueue = new LinkedBlockingQueue<>();
+        Semaphore permits = new Semaphore(maxFuturesInFlight);
+
+        Thread.ofVirtual().name("asyncMapStream-dispatcher").start(() -> {
+            try (ExecutorService calls = Executors.newVirtualThreadPerTaskExecutor()) {
+                while (true) {
+                    permits.acquire();
+                    T item;
+                    try {
+                        if (!upstream.hasNext()) {
+                            permits.release();
+                            break;
+                        }
+                        item = upstream.next();
+                    } catch (RuntimeException e) {
+                        permits.release();
+                        readyQueue.add(CompletableFuture.failedFuture(e));
+                        break;
+                    }
+                    calls.execute(() -> {
+                        CompletableFuture<U> fut = new CompletableFuture<>();
+                        try {
+                            fut.complete(blockingMapper.apply(item));
+                        } catch (Throwable t) {
+                            fut.completeExceptionally(t);
+                        } finally {
+                            permits.release();
+                            readyQueue.add(fut);
+                        }
+                    });
+                }
+                permits.acquire(maxFuturesInFlight);       // wait for every call in flight
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                readyQueue.add(CompletableFuture.failedFuture(e));
+            } finally {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<U> end = (CompletableFuture<U>) END;
+                readyQueue.add(end);
+            }
+        });
+
+        return new Iterator<CompletableFuture<U>>() {
+
+            private CompletableFuture<U> head;       // taken but not yet returned
+
+            @Override
+            public boolean hasNext() {
+                if (head == null) {
+                    try {
+                        head = readyQueue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                }
+                return head != END;
+            }
+
+            @Override
+            public CompletableFuture<U> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                CompletableFuture<U> fut = head;
+                head = null;
+                return fut;
+            }
+        };
+    }
+
+    // ---------------- Demo: 10k blocking calls of 100ms, 2k in flight ----------------
+    public static void main(String[] args) {
+        List<Integer> input = IntStream.range(0, 10_000).boxed().toList();
+
+        Function<Integer, String> blockingMapper = i -> {
+            try {
+                Thread.sleep(100);        // blocking I/O stand-in; parks the virtual thread only
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "Processed-" + i;
+        };
+
+        long t0 = System.nanoTime();
+        Iterator<CompletableFuture<String>> it = asyncMapStream(input.iterator(), blockingMapper, 2_000);
+        int n = 0;
+        while (it.hasNext()) {
+            it.next().join();
+            n++;
+        }
+        System.out.printf("%d results in %d ms (serial would be %d ms)%n",
+                n, (System.nanoTime() - t0) / 1_000_000, input.size() * 100L);
+    }
+}
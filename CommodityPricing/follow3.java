@@ -0,0 +1,212 @@
+⭐ FOLLOW-UP (c)
+RunningCommodityPriceOptimized is O(n) in a falling market. Can we guarantee O(log n)?
+
+Problem with (b):
+
+Whenever the max price loses its last occurrence → recomputeMaxPrice() scans priceFreq.
+
+A falling market does exactly that on EVERY tick:
+"the top price gets corrected downward" → max disappears → full scan.
+(Worse: priceFreq keeps prices with freq 0, so the scan grows with every price ever seen.)
+
+→ n upserts = O(n²)
+
+Fix: indexed max-heap over timestamps (primitive arrays)
+
+heapPrice[i], heapTs[i] → binary max-heap ordered by price
+tsToPos → timestamp → index in the heap (primitive open-addressing map, no boxing)
+
+upsert(ts, price):
+
+ts new → append at the end, sift up
+
+ts exists → overwrite its price in place
+  price went up → sift up
+  price went down → sift down
+
+every swap updates tsToPos, so we always find a timestamp's slot in O(1)
+
+getMaxCommodityPrice():
+
+return heapPrice[0]
+
+Time Complexity:
+
+upsert: O(log N) worst case (one sift, no rescans ever)
+
+getMax: O(1)
+
+Space: 2 ints per timestamp in the heap + 2 ints per slot in the map
+
+Why not a lazy-deletion heap?
+PriorityQueue<(price, ts)> + skip stale entries on getMax works too,
+but getMax becomes amortized (may pop many stale entries) and stale entries pile up
+on repeated corrections. The indexed heap updates in place → strict bounds, no garbage.
+
+⭐ FOLLOW-UP (c) JAVA CODE
+import java.util.*;
+
+class RunningCommodityPriceHeap {
+
+    private int[] heapPrice = new int[16];
+    private int[] heapTs = new int[16];
+    private int size = 0;
+    private final IntIntMap tsToPos = new IntIntMap();
+
+    public void upsertCommodityPrice(int timestamp, int price) {
+        int pos = tsToPos.get(timestamp);
+
+        // Case 1: new timestamp → append + sift up
+        if (pos < 0) {
+            if (size == heapPrice.length) {
+                heapPrice = Arrays.copyOf(heapPrice, size * 2);
+                heapTs = Arrays.copyOf(heapTs, size * 2);
+            }
+            heapPrice[size] = price;
+            heapTs[size] = timestamp;
+            tsToPos.put(timestamp, size);
+            siftUp(size++);
+            return;
+        }
+
+        // Case 2: correction → change in place, move one way
+        int oldPrice = heapPrice[pos];
+        heapPrice[pos] = price;
+        if (price > oldPrice) siftUp(pos);
+        else if (price < oldPrice) siftDown(pos);
+    }
+
+    // O(1)
+    public int getMaxCommodityPrice() {
+        if (size == 0) return -1;
+        return heapPrice[0];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapPrice[parent] >= heapPrice[i]) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, largest = i;
+            if (l < size && heapPrice[l] > heapPrice[largest]) largest = l;
+            if (r < size && heapPrice[r] > heapPrice[largest]) largest = r;
+            if (largest == i) return;
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int p = heapPrice[a]; heapPrice[a] = heapPrice[b]; heapPrice[b] = p;
+        int t = heapTs[a]; heapTs[a] = heapTs[b]; heapTs[b] = t;
+        tsToPos.put(heapTs[a], a);
+        tsToPos.put(heapTs[b], b);
+    }
+
+    // int → int open addressing (linear probing), timestamps are never removed
+    static class IntIntMap {
+        private int[] keys = new int[32];
+        private int[] vals = new int[32];
+        private boolean[] used = new boolean[32];
+        private int count = 0;
+
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) return vals[i];
+            }
+            return -1;
+        }
+
+        void put(int key, int val) {
+            if (2 * (count + 1) > keys.length) resize();
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (used[i] && keys[i] != key) i = (i + 1) & mask;
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                count++;
+            }
+            vals[i] = val;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys, oldVals = vals;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            vals = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) put(oldKeys[i], oldVals[i]);
+            }
+        }
+
+        private static int mix(int k) {
+            int h = k * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
+
+⭐ Benchmark: adversarial "always correct the max downward"
+
+n timestamps with prices 0..n-1, then n corrections:
+the timestamp holding the current max is corrected to a price below everything.
+→ every correction removes the max's last occurrence (worst case for (b))
+
+class FollowupCBenchmark {
+
+    interface PriceIndex {
+        void upsert(int ts, int price);
+
+        int max();
+    }
+
+    public static void main(String[] args) {
+        for (int n : new int[] { 5_000, 10_000, 20_000, 1_000_000 }) {
+            System.out.println("n = " + n);
+            if (n <= 20_000) {
+                RunningCommodityPriceOptimized scan = new RunningCommodityPriceOptimized();
+                run("  (b) HashMap + rescan ", n, new PriceIndex() {
+                    public void upsert(int ts, int price) { scan.upsertCommodityPrice(ts, price); }
+
+                    public int max() { return scan.getMaxCommodityPrice(); }
+                });
+            }
+            RunningCommodityPrice tree = new RunningCommodityPrice();
+            run("  (a) TreeMap          ", n, new PriceIndex() {
+                public void upsert(int ts, int price) { tree.upsertCommodityPrice(ts, price); }
+
+                public int max() { return tree.getMaxCommodityPrice(); }
+            });
+            RunningCommodityPriceHeap heap = new RunningCommodityPriceHeap();
+            run("  (c) indexed heap     ", n, new PriceIndex() {
+                public void upsert(int ts, int price) { heap.upsertCommodityPrice(ts, price); }
+
+                public int max() { return heap.getMaxCommodityPrice(); }
+            });
+        }
+    }
+
+    static void run(String name, int n, PriceIndex index) {
+        for (int ts = 0; ts < n; ts++) index.upsert(ts, ts);
+
+        long t0 = System.nanoTime();
+        long checksum = 0;
+        for (int k = 0; k < n; k++) {
+            int ts = n - 1 - k;                 // holds the current max
+            index.upsert(ts, -1 - k);           // corrected below every price
+            checksum += index.max();
+        }
+        long ns = System.nanoTime() - t0;
+        System.out.printf("%s %8.1f ns per correction (checksum %d)%n", name, (double) ns / n, checksum);
+    }
+}
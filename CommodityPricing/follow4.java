@@ -0,0 +1,228 @@
+⭐ FOLLOW-UP (d)
+Max price in a time range [t1, t2]? Max over the last W ticks?
+
+(a) / (b) / (c) only know the GLOBAL max.
+Now we need range max with upserts (a timestamp can still be corrected).
+
+Approach: segment tree over arrival-ordered timestamps
+
+Timestamps arrive (mostly) in increasing order → slot i = i-th distinct timestamp
+sortedTs[i] → the timestamp in slot i (sorted, so binary search maps t → slot)
+tree → iterative max segment tree over slots (leaves at tree[cap + i])
+
+upsert(ts, price):
+
+ts exists (binary search) → overwrite leaf, walk up to root
+
+ts newer than all → append slot (capacity doubles, tree rebuilt in O(n) → amortized O(1))
+                    then walk up
+
+ts older but new → insert into sortedTs + rebuild the tree, O(n)
+                   (a late tick; the only slow path, still correct)
+
+getMaxInRange(t1, t2):
+
+lo = first slot with ts >= t1
+hi = last slot with ts <= t2
+bottom-up segment tree query over [lo, hi]
+
+Time Complexity:
+
+upsert: O(log N) (amortized for appends, O(N) for late new timestamps)
+
+getMaxInRange: O(log N)
+
+getMax: O(1) → tree[1]
+
+Why not compress offline?
+Compression needs all timestamps up front. A live price feed doesn't have them,
+arrival order gives the same sorted slots for free when ticks come in order.
+
+Sliding window: max over the last W ticks
+
+If timestamps arrive strictly in order and are never corrected, we don't need a tree:
+
+"last W ticks" = last W arrivals, however far apart their timestamps are
+n → number of ticks seen so far (arrival index of the next tick)
+monotonic deque of (n, price), prices strictly decreasing front → back
+
+add(ts, price):
+  pop back while back.price <= price (can never be the max again)
+  i = n++, push (i, price)
+  pop front while front.i <= i - W (arrived more than W ticks ago)
+
+getMax(): front.price
+
+Time Complexity:
+
+add: O(1) amortized (every tick pushed and popped once)
+getMax: O(1)
+Space: O(W) worst case
+
+If an in-window tick can be corrected → use the segment tree over the last W slots
+(slot = arrival order, so the window is slots [size - W, size - 1])
+
+⭐ FOLLOW-UP (d) JAVA CODE
+import java.util.*;
+
+class RangeMaxCommodityPrice {
+
+    private int[] sortedTs = new int[16];
+    private int size = 0;
+    private int cap = 16;                  // leaves, power of two >= size
+    private int[] tree = new int[2 * cap];
+
+    RangeMaxCommodityPrice() {
+        Arrays.fill(tree, Integer.MIN_VALUE);
+    }
+
+    public void upsertCommodityPrice(int timestamp, int price) {
+        int slot = Arrays.binarySearch(sortedTs, 0, size, timestamp);
+
+        // Case 1: timestamp already exists → point update
+        if (slot >= 0) {
+            update(slot, price);
+            return;
+        }
+
+        int insertAt = -slot - 1;
+
+        // Case 2: newest timestamp → append slot
+        if (insertAt == size) {
+            if (size == cap) grow();
+            sortedTs[size++] = timestamp;
+            update(insertAt, price);
+            return;
+        }
+
+        // Case 3: late tick (older but new) → shift slots, rebuild
+        if (size == cap) grow();
+        int[] leaves = Arrays.copyOfRange(tree, cap, cap + size);
+        System.arraycopy(sortedTs, insertAt, sortedTs, insertAt + 1, size - insertAt);
+        System.arraycopy(leaves, insertAt, tree, cap + insertAt + 1, size - insertAt);
+        sortedTs[insertAt] = timestamp;
+        tree[cap + insertAt] = price;
+        size++;
+        rebuild();
+    }
+
+    // Max price over timestamps in [t1, t2], -1 if none
+    public int getMaxInRange(int t1, int t2) {
+        int lo = lowerBound(t1);
+        int hi = lowerBound(t2 == Integer.MAX_VALUE ? t2 : t2 + 1) - 1;
+        if (lo > hi) return -1;
+
+        int best = Integer.MIN_VALUE;
+        for (int l = lo + cap, r = hi + cap + 1; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) best = Math.max(best, tree[l++]);
+            if ((r & 1) == 1) best = Math.max(best, tree[--r]);
+        }
+        return best;
+    }
+
+    // O(1)
+    public int getMaxCommodityPrice() {
+        if (size == 0) return -1;
+        return tree[1];
+    }
+
+    private void update(int slot, int price) {
+        int i = slot + cap;
+        tree[i] = price;
+        for (i >>= 1; i >= 1; i >>= 1) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    private void grow() {
+        int[] leaves = Arrays.copyOfRange(tree, cap, cap + size);
+        cap *= 2;
+        sortedTs = Arrays.copyOf(sortedTs, cap);
+        tree = new int[2 * cap];
+        Arrays.fill(tree, Integer.MIN_VALUE);
+        System.arraycopy(leaves, 0, tree, cap, size);
+        rebuild();
+    }
+
+    private void rebuild() {
+        for (int i = cap - 1; i >= 1; i--) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    // first slot with sortedTs >= t
+    private int lowerBound(int t) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedTs[mid] < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
+
+class SlidingWindowMaxPrice {
+
+    private final int window;
+    private final ArrayDeque<long[]> deque = new ArrayDeque<>();  // {tick index, price}, prices decreasing
+    private long ticks = 0;
+    private int latestTs = Integer.MIN_VALUE;
+
+    SlidingWindowMaxPrice(int window) {
+        this.window = window;
+    }
+
+    public void addCommodityPrice(int timestamp, int price) {
+        if (timestamp <= latestTs) {
+            throw new IllegalArgumentException("timestamps must arrive in order: " + timestamp + " after " + latestTs);
+        }
+        latestTs = timestamp;
+
+        long n = ticks++;
+        while (!deque.isEmpty() && deque.peekLast()[1] <= price) deque.pollLast();
+        deque.addLast(new long[] { n, price });
+
+        while (deque.peekFirst()[0] <= n - window) deque.pollFirst();
+    }
+
+    // Max over the last W ticks, -1 if empty
+    public int getMaxCommodityPrice() {
+        if (deque.isEmpty()) return -1;
+        return (int) deque.peekFirst()[1];
+    }
+}
+
+public class FollowupD {
+    public static void main(String[] args) {
+
+        RangeMaxCommodityPrice r = new RangeMaxCommodityPrice();
+
+        r.upsertCommodityPrice(4, 27);
+        r.upsertCommodityPrice(6, 26);
+        r.upsertCommodityPrice(9, 25);
+
+        System.out.println(r.getMaxInRange(5, 9));   // 26
+        System.out.println(r.getMaxInRange(7, 8));   // -1 (no ticks)
+
+        r.upsertCommodityPrice(6, 30);  // correction
+        r.upsertCommodityPrice(5, 29);  // late tick
+
+        System.out.println(r.getMaxInRange(5, 5));   // 29
+        System.out.println(r.getMaxInRange(4, 9));   // 30
+        System.out.println(r.getMaxCommodityPrice()); // 30
+
+        SlidingWindowMaxPrice w = new SlidingWindowMaxPrice(3);
+
+        w.addCommodityPrice(1, 10);
+        w.addCommodityPrice(2, 12);
+        w.addCommodityPrice(3, 11);
+        System.out.println(w.getMaxCommodityPrice()); // 12 (ticks 1..3)
+
+        w.addCommodityPrice(5, 9);
+        System.out.println(w.getMaxCommodityPrice()); // 12 (last 3 ticks: ts 2, 3, 5)
+
+        w.addCommodityPrice(9, 8);
+        System.out.println(w.getMaxCommodityPrice()); // 11 (last 3 ticks: ts 3, 5, 9)
+    }
+}